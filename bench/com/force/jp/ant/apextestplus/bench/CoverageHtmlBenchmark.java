@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.force.jp.ant.apextestplus.ClassCoverageResult;
+import com.sforce.soap.apex.RunTestsResult;
+
+/**
+ * Measures rendering the coverage page of a large source.
+ * The page is written to a writer that discards its output, so that only the rendering is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class CoverageHtmlBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int lines;
+
+    private File src;
+    private ClassCoverageResult coverage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        src = File.createTempFile("FakeClass", ".cls");
+        FakeData.writeSource(src, lines);
+
+        RunTestsResult result = FakeData.newRunTestsResult(1, 1, 1, lines, 1);
+        coverage = new ClassCoverageResult(FakeData.className(0));
+        coverage.addCoverageResult(result.getCodeCoverage()[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        src.delete();
+    }
+
+    @Benchmark
+    public void toHtml(Blackhole bh) throws IOException {
+        coverage.toHtml(src, new BlackholeWriter(bh));
+    }
+
+    private static class BlackholeWriter extends Writer {
+        private Blackhole bh;
+
+        BlackholeWriter(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            bh.consume(cbuf);
+            bh.consume(len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            bh.consume(str);
+            bh.consume(len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.CodeCoverageWarning;
+import com.sforce.soap.apex.CodeLocation;
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
+import com.sforce.soap.apex.RunTestsResult;
+
+/**
+ * Generates fake test results, debug logs and Apex sources shaped like those of real runs,
+ * such as the ones in doc/sample_result.
+ * Test classes are named "FakeTest0001" and so on, and the classes they cover "FakeClass0001" and so on.
+ * The same seed always generates the same data.
+ *
+ * Run main() to write a debug log of a given size to a file:
+ * <pre>java FakeData &lt;file&gt; &lt;size in MB&gt; [numTestClasses] [methodsPerClass]</pre>
+ */
+public class FakeData {
+    private static final String[] LIMIT_NAMES = {
+        "Number of SOQL queries", "Number of query rows", "Number of SOSL queries", "Number of DML statements",
+        "Number of DML rows", "Maximum CPU time", "Maximum heap size", "Number of callouts",
+        "Number of Email Invocations", "Number of future calls"
+    };
+    private static final int[] LIMIT_MAXIMUMS = {100, 50000, 20, 150, 10000, 10000, 6000000, 100, 10, 50};
+
+    public static String testClassName(int i) {
+        return String.format("FakeTest%04d", i);
+    }
+
+    public static String methodName(int i) {
+        return String.format("testMethod%02d", i);
+    }
+
+    public static String className(int i) {
+        return String.format("FakeClass%04d", i);
+    }
+
+    /**
+     * Creates a result of numTestClasses * methodsPerClass test methods, about 5% of which fail,
+     * with coverage of numClasses classes of linesPerClass lines each.
+     */
+    public static RunTestsResult newRunTestsResult(int numTestClasses, int methodsPerClass, int numClasses, int linesPerClass, long seed) {
+        Random random = new Random(seed);
+        List<RunTestSuccess> successes = new ArrayList<RunTestSuccess>();
+        List<RunTestFailure> failures = new ArrayList<RunTestFailure>();
+        double totalTime = 0;
+
+        for (int c = 0; c < numTestClasses; c++) {
+            for (int m = 0; m < methodsPerClass; m++) {
+                double time = random.nextInt(2000);
+                totalTime += time;
+                if (random.nextInt(20) == 0) {
+                    RunTestFailure failure = new RunTestFailure();
+                    failure.setName(testClassName(c));
+                    failure.setMethodName(methodName(m));
+                    failure.setTime(time);
+                    failure.setMessage("System.AssertException: Assertion Failed: Expected: 1, Actual: 0");
+                    failure.setStackTrace("Class." + testClassName(c) + "." + methodName(m) + ": line " + (m + 10) + ", column 1");
+                    failures.add(failure);
+                } else {
+                    RunTestSuccess success = new RunTestSuccess();
+                    success.setName(testClassName(c));
+                    success.setMethodName(methodName(m));
+                    success.setTime(time);
+                    successes.add(success);
+                }
+            }
+        }
+
+        List<CodeCoverageResult> coverages = new ArrayList<CodeCoverageResult>();
+        List<CodeCoverageWarning> warnings = new ArrayList<CodeCoverageWarning>();
+        for (int c = 0; c < numClasses; c++) {
+            // every other line is executable, and some of them are not covered
+            int numLocations = linesPerClass / 2;
+            int notCoveredPct = random.nextInt(100);
+            List<CodeLocation> notCovered = new ArrayList<CodeLocation>();
+            List<CodeLocation> methods = new ArrayList<CodeLocation>();
+            for (int line = 1; line < linesPerClass; line += 2) {
+                CodeLocation loc = new CodeLocation();
+                loc.setLine(line);
+                loc.setColumn(9);
+                if (random.nextInt(100) < notCoveredPct) {
+                    notCovered.add(loc);
+                } else if (random.nextInt(10) == 0) {
+                    loc.setNumExecutions(1 + random.nextInt(1000));
+                    loc.setTime(random.nextInt(50));
+                    methods.add(loc);
+                }
+            }
+
+            CodeCoverageResult coverage = new CodeCoverageResult();
+            coverage.setName(className(c));
+            coverage.setType("Class");
+            coverage.setNumLocations(numLocations);
+            coverage.setNumLocationsNotCovered(notCovered.size());
+            coverage.setLocationsNotCovered(notCovered.toArray(new CodeLocation[0]));
+            coverage.setMethodInfo(methods.toArray(new CodeLocation[0]));
+            coverage.setDmlInfo(new CodeLocation[0]);
+            coverage.setSoqlInfo(new CodeLocation[0]);
+            coverage.setSoslInfo(new CodeLocation[0]);
+            coverages.add(coverage);
+
+            if (notCovered.size() == numLocations) {
+                CodeCoverageWarning warning = new CodeCoverageWarning();
+                warning.setName(className(c));
+                warning.setMessage("Test coverage of selected Apex Class is 0%, at least 1% test coverage is required");
+                warnings.add(warning);
+            }
+        }
+
+        RunTestsResult result = new RunTestsResult();
+        result.setSuccesses(successes.toArray(new RunTestSuccess[0]));
+        result.setFailures(failures.toArray(new RunTestFailure[0]));
+        result.setNumTestsRun(successes.size() + failures.size());
+        result.setNumFailures(failures.size());
+        result.setTotalTime(totalTime);
+        result.setCodeCoverage(coverages.toArray(new CodeCoverageResult[0]));
+        result.setCodeCoverageWarnings(warnings.toArray(new CodeCoverageWarning[0]));
+        return result;
+    }
+
+    /**
+     * Writes a debug log of about targetBytes bytes that covers the test methods of newRunTestsResult().
+     * The size is spread over the methods unevenly, and some methods are followed by a block of an asynchronous call.
+     * Returns the number of characters written.
+     */
+    public static long writeDebugLog(Writer out, int numTestClasses, int methodsPerClass, long targetBytes, long seed) throws IOException {
+        Random random = new Random(seed);
+        int numMethods = numTestClasses * methodsPerClass;
+        long bytesPerMethod = Math.max(targetBytes / numMethods, 1);
+        LogWriter log = new LogWriter(out);
+
+        for (int c = 0; c < numTestClasses; c++) {
+            for (int m = 0; m < methodsPerClass; m++) {
+                // between a quarter and double the average size
+                long blockBytes = bytesPerMethod / 4 + (long) (random.nextDouble() * bytesPerMethod * 7 / 4);
+                writeBlock(log, random, testClassName(c) + "." + methodName(m), "01p" + String.format("%012d", c), blockBytes);
+
+                if (random.nextInt(10) == 0) {
+                    writeBlock(log, random, "FakeBatch.execute", "01p000000999999", blockBytes / 4);
+                }
+            }
+        }
+        out.flush();
+        return log.written;
+    }
+
+    private static void writeBlock(LogWriter log, Random random, String codeUnit, String id, long blockBytes) throws IOException {
+        long start = log.written;
+        log.line("EXECUTION_STARTED");
+        log.line("CODE_UNIT_STARTED|[EXTERNAL]|" + id + "|" + codeUnit);
+
+        while (log.written - start < blockBytes) {
+            String target = className(random.nextInt(200));
+            int line = 1 + random.nextInt(500);
+            switch (random.nextInt(4)) {
+            case 0:
+                log.line("CONSTRUCTOR_ENTRY|[" + line + "]|01p000000000001|<init>()");
+                log.line("CONSTRUCTOR_EXIT|[" + line + "]|<init>()");
+                break;
+            case 1:
+                log.line("USER_DEBUG|[" + line + "]|DEBUG|value=" + random.nextInt());
+                break;
+            case 2:
+                log.line("SOQL_EXECUTE_BEGIN|[" + line + "]|Aggregations:0|select Id from Account limit 1");
+                log.line("SOQL_EXECUTE_END|[" + line + "]|Rows:1");
+                break;
+            default:
+                log.line("METHOD_ENTRY|[" + line + "]|01p000000000001|" + target + ".run()");
+                log.line("METHOD_EXIT|[" + line + "]|" + target + ".run()");
+                break;
+            }
+        }
+
+        log.line("CUMULATIVE_LIMIT_USAGE");
+        log.line("LIMIT_USAGE_FOR_NS|(default)|");
+        for (int i = 0; i < LIMIT_NAMES.length; i++) {
+            log.raw("  " + LIMIT_NAMES[i] + ": " + random.nextInt(LIMIT_MAXIMUMS[i] / 2) + " out of " + LIMIT_MAXIMUMS[i] + "\n");
+        }
+        log.raw("\n");
+        log.line("CUMULATIVE_LIMIT_USAGE_END");
+        log.raw("\n");
+        log.line("CODE_UNIT_FINISHED|" + codeUnit);
+        log.line("EXECUTION_FINISHED");
+        log.raw("\n");
+    }
+
+    /**
+     * Writes an Apex source of the given number of lines.
+     */
+    public static void writeSource(File file, int lines) throws IOException {
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            out.write("public with sharing class FakeClass {\n");
+            for (int i = 2; i < lines; i++) {
+                if (i % 2 == 0) {
+                    out.write("    // <comment> line " + i + " & more\n");
+                } else {
+                    out.write("    Integer v" + i + " = calculate(" + i + ", 'value');\n");
+                }
+            }
+            out.write("}\n");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: FakeData <file> <size in MB> [numTestClasses] [methodsPerClass]");
+            System.exit(1);
+        }
+
+        File file = new File(args[0]);
+        long bytes = Long.parseLong(args[1]) * 1024 * 1024;
+        int numTestClasses = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int methodsPerClass = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+            long written = writeDebugLog(out, numTestClasses, methodsPerClass, bytes, 1);
+            System.out.println("Wrote " + written + " characters to " + file.getAbsolutePath());
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes lines prefixed with a timestamp like "10:36:06.296 (296123456)|" and counts the characters written.
+     */
+    private static class LogWriter {
+        private Writer out;
+        private long written = 0;
+        private long nanos = 0;
+
+        LogWriter(Writer out) {
+            this.out = out;
+        }
+
+        void line(String event) throws IOException {
+            nanos += 1000 + (nanos % 7) * 3000;
+            long millis = nanos / 1000000;
+            String timestamp = String.format("%02d:%02d:%02d.%03d (%d)|", (millis / 3600000) % 24, (millis / 60000) % 60, (millis / 1000) % 60, millis % 1000, nanos);
+            raw(timestamp + event + "\n");
+        }
+
+        void raw(String s) throws IOException {
+            out.write(s);
+            written += s.length();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.force.jp.ant.apextestplus.TestResult;
+
+/**
+ * Measures splitting debug logs of 1MB to 1GB into the logs of each test method.
+ * The log is generated once per trial into a temporary directory, and read from the file on each invocation
+ * the same way RunTestTask does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class SeparateDebugLogBenchmark {
+    @Param({"1", "10", "100", "1024"})
+    public int logSizeMB;
+
+    @Param({"100"})
+    public int numTestClasses;
+
+    @Param({"10"})
+    public int methodsPerClass;
+
+    private File workDir;
+    private File logFile;
+    private File outDir;
+    private TestResult testResult;
+
+    @Setup(Level.Trial)
+    public void generateLog() throws IOException {
+        workDir = File.createTempFile("apextestplus-bench", "");
+        if (!workDir.delete() || !workDir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + workDir.getAbsolutePath());
+        }
+        logFile = new File(workDir, "input.log");
+
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile), "UTF-8"), 64 * 1024);
+            FakeData.writeDebugLog(out, numTestClasses, methodsPerClass, logSizeMB * 1024L * 1024L, 1);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareOutput() {
+        outDir = new File(workDir, "out");
+        delete(outDir);
+        testResult = new TestResult(FakeData.newRunTestsResult(numTestClasses, methodsPerClass, 0, 0, 1), new Date(), 75);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() {
+        delete(workDir);
+    }
+
+    @Benchmark
+    public TestResult separateDebugLog() throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(logFile));
+            testResult.separateDebugLog(outDir, in);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        return testResult;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus.bench;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.force.jp.ant.apextestplus.ClassCoverageResult;
+import com.force.jp.ant.apextestplus.TestResult;
+import com.sforce.soap.apex.RunTestsResult;
+
+/**
+ * Measures building a TestResult out of a RunTestsResult, computing the total coverage of it,
+ * and looking up the coverage status of every line the way the coverage pages do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class TestResultBenchmark {
+    @Param({"100", "1000", "4000"})
+    public int numClasses;
+
+    @Param({"500"})
+    public int linesPerClass;
+
+    private RunTestsResult result;
+    private TestResult testResult;
+
+    @Setup
+    public void setUp() {
+        // about one test class for every four classes, with 10 methods each
+        result = FakeData.newRunTestsResult(Math.max(numClasses / 4, 1), 10, numClasses, linesPerClass, 1);
+        testResult = new TestResult(result, new Date(), 75);
+    }
+
+    @Benchmark
+    public TestResult construct() {
+        return new TestResult(result, new Date(), 75);
+    }
+
+    @Benchmark
+    public BigDecimal totalPctCoverage() {
+        return testResult.getTotalPctCoverage();
+    }
+
+    @Benchmark
+    public int coverageStatus() {
+        int numNotCovered = 0;
+        for (ClassCoverageResult coverageResult : testResult.getClassCoverageResults()) {
+            for (int line = 1; line <= linesPerClass; line++) {
+                if (coverageResult.getCoverageStatus(line) == ClassCoverageResult.STATUS.NOTCOVERED) {
+                    numNotCovered++;
+                }
+            }
+        }
+        return numNotCovered;
+    }
+}
@@ -0,0 +1,482 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Rebuilds the call tree of each test method out of the METHOD_ENTRY/EXIT, CONSTRUCTOR_ENTRY/EXIT
+ * and CODE_UNIT_STARTED/FINISHED events in its debug logs, and sums up the calls, self time and total time
+ * of every Apex method.
+ *
+ * Times are taken from the nanoseconds in the timestamps, e.g. "10:36:06.296 (296123456)|", when they are there,
+ * and from the milliseconds otherwise.
+ */
+public class ApexProfiler implements DebugLogListener {
+    public static final String HOTSPOTS_FILENAME = "hotspots.html";
+    public static final String FLAMEGRAPH_FILENAME = "flamegraph.html";
+    public static final String COLLAPSED_FILENAME = "stacks.collapsed";
+
+    private static final Pattern TIMESTAMP_PATTERN = Pattern.compile("^(\\d{2}):(\\d{2}):(\\d{2})\\.(\\d{3})(?: \\((\\d+)\\))?\\|");
+    private static final Pattern ENTRY_PATTERN = Pattern.compile("\\|(METHOD_ENTRY|CONSTRUCTOR_ENTRY)\\|\\[\\d*\\]\\|(?:([0-9A-Za-z]{15,18})\\|)?(.+)$");
+
+    // nodes narrower than this fraction of the whole are left out of the flame graph
+    private static final double MIN_FLAME_WIDTH = 0.001;
+
+    private enum Kind {CODE_UNIT, METHOD, CONSTRUCTOR}
+
+    private CallNode root = new CallNode("all");
+    private Map<String, MethodStats> methodStats = new HashMap<String, MethodStats>();
+    private Map<String, Long> testMethodTimes = new LinkedHashMap<String, Long>();
+
+    // class names by ID, learned from METHOD_ENTRY lines, to qualify constructors
+    private Map<String, String> classNames = new HashMap<String, String>();
+
+    private String testMethod = null;
+    private List<Frame> stack = new ArrayList<Frame>();
+    private Map<String, Integer> namesOnStack = new HashMap<String, Integer>();
+    private long lastTime = 0;
+
+    public void blockStarted(String className, String methodName) {
+        testMethod = className + "." + methodName;
+        stack.clear();
+        namesOnStack.clear();
+    }
+
+    public void lineRead(String line) {
+        Matcher tm = TIMESTAMP_PATTERN.matcher(line);
+        if (!tm.find()) {
+            return;
+        }
+        long time = 0;
+        if (tm.group(5) != null) {
+            time = Long.parseLong(tm.group(5));
+        } else {
+            time = ((Long.parseLong(tm.group(1)) * 60 + Long.parseLong(tm.group(2))) * 60 + Long.parseLong(tm.group(3))) * 1000000000L
+                    + Long.parseLong(tm.group(4)) * 1000000L;
+        }
+        lastTime = time;
+
+        int start = tm.end();
+        if (line.startsWith("METHOD_ENTRY|", start) || line.startsWith("CONSTRUCTOR_ENTRY|", start)) {
+            Matcher m = ENTRY_PATTERN.matcher(line);
+            if (m.find(start - 1)) {
+                boolean constructor = m.group(1).startsWith("CONSTRUCTOR");
+                String id = m.group(2);
+                String name = m.group(3);
+                if (constructor) {
+                    String className = id != null ? classNames.get(id) : null;
+                    name = (className != null ? className : (id != null ? id : "")) + "." + name;
+                } else if (id != null && name.indexOf('.') > 0 && !classNames.containsKey(id)) {
+                    classNames.put(id, name.substring(0, name.indexOf('.')));
+                }
+                push(name, constructor ? Kind.CONSTRUCTOR : Kind.METHOD, time);
+            }
+        } else if (line.startsWith("METHOD_EXIT|", start)) {
+            pop(Kind.METHOD, time);
+        } else if (line.startsWith("CONSTRUCTOR_EXIT|", start)) {
+            pop(Kind.CONSTRUCTOR, time);
+        } else if (line.startsWith("CODE_UNIT_STARTED|", start)) {
+            String name = line.substring(line.lastIndexOf('|') + 1);
+            push(name, Kind.CODE_UNIT, time);
+        } else if (line.startsWith("CODE_UNIT_FINISHED|", start)) {
+            pop(Kind.CODE_UNIT, time);
+        }
+    }
+
+    public void blockFinished() {
+        // close whatever is left open, e.g. by an uncaught exception
+        while (!stack.isEmpty()) {
+            popTop(lastTime);
+        }
+        testMethod = null;
+    }
+
+    private void push(String name, Kind kind, long time) {
+        if (testMethod == null) {
+            return;
+        }
+
+        CallNode parent = null;
+        if (!stack.isEmpty()) {
+            parent = stack.get(stack.size() - 1).node;
+        } else {
+            // every tree starts with the test method; the code unit of the test method itself is merged into it
+            parent = root.getChild(testMethod);
+            if (kind == Kind.CODE_UNIT && name.equals(testMethod)) {
+                parent = root;
+            }
+        }
+
+        Frame frame = new Frame(parent.getChild(name), kind, time);
+        stack.add(frame);
+        Integer count = namesOnStack.get(name);
+        namesOnStack.put(name, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Pops the innermost frame of the kind, together with the frames above it that didn't get their exits.
+     * An exit without a matching entry is ignored. Method and constructor exits don't go beyond the code unit
+     * they are in.
+     */
+    private void pop(Kind kind, long time) {
+        int i = stack.size() - 1;
+        while (i >= 0 && stack.get(i).kind != kind) {
+            if (kind != Kind.CODE_UNIT && stack.get(i).kind == Kind.CODE_UNIT) {
+                return;
+            }
+            i--;
+        }
+        if (i < 0) {
+            return;
+        }
+        while (stack.size() > i) {
+            popTop(time);
+        }
+    }
+
+    private void popTop(long time) {
+        Frame frame = stack.remove(stack.size() - 1);
+        long total = Math.max(time - frame.startTime, 0);
+        long self = Math.max(total - frame.childTime, 0);
+        if (!stack.isEmpty()) {
+            stack.get(stack.size() - 1).childTime += total;
+        } else if (testMethod != null) {
+            Long sum = testMethodTimes.get(testMethod);
+            testMethodTimes.put(testMethod, (sum == null ? 0 : sum) + total);
+
+            // blocks of asynchronous calls hang under the node of the test method they are credited to
+            CallNode testNode = root.getChild(testMethod);
+            if (testNode != frame.node) {
+                testNode.totalTime += total;
+            }
+        }
+
+        String name = frame.node.name;
+        frame.node.calls++;
+        frame.node.selfTime += self;
+        frame.node.totalTime += total;
+
+        MethodStats stats = methodStats.get(name);
+        if (stats == null) {
+            stats = new MethodStats(name);
+            methodStats.put(name, stats);
+        }
+        stats.calls++;
+        stats.selfTime += self;
+
+        // time of recursive calls is counted only once, by the outermost one
+        int count = namesOnStack.get(name);
+        if (count == 1) {
+            namesOnStack.remove(name);
+            stats.totalTime += total;
+        } else {
+            namesOnStack.put(name, count - 1);
+        }
+    }
+
+    public boolean isEmpty() {
+        return methodStats.isEmpty();
+    }
+
+    /**
+     * Returns the statistics of every method, the one with the longest self time first.
+     */
+    public List<MethodStats> getHotspots() {
+        List<MethodStats> hotspots = new ArrayList<MethodStats>(methodStats.values());
+        Collections.sort(hotspots, new Comparator<MethodStats>() {
+            public int compare(MethodStats s1, MethodStats s2) {
+                return s1.selfTime != s2.selfTime ? (s1.selfTime < s2.selfTime ? 1 : -1) : s1.name.compareTo(s2.name);
+            }
+        });
+        return hotspots;
+    }
+
+    /**
+     * Writes the hotspot table, the flame graph and the collapsed stacks to the directory.
+     */
+    public void writeReport(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+
+        Writer out = null;
+        try {
+            out = newWriter(new File(dir, HOTSPOTS_FILENAME));
+            writeHotspots(out);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        out = null;
+        try {
+            out = newWriter(new File(dir, FLAMEGRAPH_FILENAME));
+            writeFlameGraph(out);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        out = null;
+        try {
+            out = newWriter(new File(dir, COLLAPSED_FILENAME));
+            for (CallNode child : root.children.values()) {
+                writeCollapsed(out, child, "");
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static Writer newWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+    }
+
+    private void writeHotspots(Writer out) throws IOException {
+        long wholeTime = 0;
+        for (long time : testMethodTimes.values()) {
+            wholeTime += time;
+        }
+
+        out.write("<html>\n");
+        out.write("<head>\n");
+        out.write("<title>Apex Profile</title>\n");
+        out.write("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+        out.write("<link href=\"../coverage.css\" rel=\"stylesheet\" type=\"text/css\" />\n");
+        out.write("<script type=\"text/javascript\">\n");
+        out.write("function sortTable(th, col, numeric) {\n");
+        out.write("  var tbody = th.parentNode.parentNode.parentNode.tBodies[0];\n");
+        out.write("  var rows = Array.prototype.slice.call(tbody.rows);\n");
+        out.write("  var desc = th.getAttribute('data-desc') != 'true';\n");
+        out.write("  th.setAttribute('data-desc', desc);\n");
+        out.write("  rows.sort(function(a, b) {\n");
+        out.write("    var x = a.cells[col].getAttribute('data-value'), y = b.cells[col].getAttribute('data-value');\n");
+        out.write("    var c = numeric ? parseFloat(x) - parseFloat(y) : (x < y ? -1 : x > y ? 1 : 0);\n");
+        out.write("    return desc ? -c : c;\n");
+        out.write("  });\n");
+        out.write("  for (var i = 0; i < rows.length; i++) tbody.appendChild(rows[i]);\n");
+        out.write("}\n");
+        out.write("</script>\n");
+        out.write("</head>\n");
+        out.write("<body>\n");
+        out.write("<h1>Apex Profile</h1>\n");
+        out.write("<p><a href=\"../index.html\">Test Results</a> | <a href=\"" + FLAMEGRAPH_FILENAME + "\">Flame Graph</a>"
+                + " | <a href=\"" + COLLAPSED_FILENAME + "\">Collapsed Stacks</a> (for flamegraph.pl, speedscope, etc.)</p>\n");
+
+        out.write("<h2>Hotspots</h2>\n");
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 0, false)\">Method</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 1, true)\">Calls</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 2, true)\">Self Time (ms)</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 3, true)\">Self %</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 4, true)\">Total Time (ms)</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 5, true)\">Avg Total Time (ms)</th>\n");
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
+        for (MethodStats stats : getHotspots()) {
+            String name = StringEscapeUtils.escapeHtml(stats.name);
+            out.write("    <tr class=\"dataRow\">\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + name + "\">" + name + "</td>\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + stats.calls + "\">" + stats.calls + "</td>\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + stats.selfTime + "\">" + millis(stats.selfTime) + "</td>\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + stats.selfTime + "\">" + percent(stats.selfTime, wholeTime) + "</td>\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + stats.totalTime + "\">" + millis(stats.totalTime) + "</td>\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + (stats.totalTime / stats.calls) + "\">" + millis(stats.totalTime / stats.calls) + "</td>\n");
+            out.write("    </tr>\n");
+        }
+        out.write("</tbody>\n");
+        out.write("</table>\n");
+
+        out.write("<h2>Test Methods</h2>\n");
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 0, false)\">Test Method</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 1, true)\">Profiled Time (ms)</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" onclick=\"sortTable(this, 2, true)\">%</th>\n");
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
+        for (Map.Entry<String, Long> time : testMethodTimes.entrySet()) {
+            String name = StringEscapeUtils.escapeHtml(time.getKey());
+            out.write("    <tr class=\"dataRow\">\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + name + "\">" + name + "</td>\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + time.getValue() + "\">" + millis(time.getValue()) + "</td>\n");
+            out.write("        <td class=\"dataCell\" data-value=\"" + time.getValue() + "\">" + percent(time.getValue(), wholeTime) + "</td>\n");
+            out.write("    </tr>\n");
+        }
+        out.write("</tbody>\n");
+        out.write("</table>\n");
+        out.write("</body>\n");
+        out.write("</html>\n");
+    }
+
+    /**
+     * Writes an icicle-style flame graph: callers on top, callees below, widths proportional to total time.
+     */
+    private void writeFlameGraph(Writer out) throws IOException {
+        long wholeTime = 0;
+        for (CallNode child : root.children.values()) {
+            wholeTime += child.totalTime;
+        }
+
+        out.write("<html>\n");
+        out.write("<head>\n");
+        out.write("<title>Apex Flame Graph</title>\n");
+        out.write("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+        out.write("<style type=\"text/css\">\n");
+        out.write("body { font-family: Arial, Helvetica, sans-serif; font-size: 11px; }\n");
+        out.write("div.row { display: flex; width: 100%; }\n");
+        out.write("div.node { overflow: hidden; box-sizing: border-box; }\n");
+        out.write("div.label { background-color: #f5b041; border: 1px solid #ffffff; white-space: nowrap; overflow: hidden; text-overflow: ellipsis; padding: 1px 2px; }\n");
+        out.write("div.label:hover { background-color: #e67e22; }\n");
+        out.write("</style>\n");
+        out.write("</head>\n");
+        out.write("<body>\n");
+        out.write("<h1>Apex Flame Graph</h1>\n");
+        out.write("<p><a href=\"" + HOTSPOTS_FILENAME + "\">Hotspots</a> | Total " + millis(wholeTime) + " ms. Widths are proportional to total time. Hover for details.</p>\n");
+        out.write("<div class=\"row\">\n");
+        for (CallNode child : root.children.values()) {
+            writeFlameNode(out, child, wholeTime, wholeTime);
+        }
+        out.write("</div>\n");
+        out.write("</body>\n");
+        out.write("</html>\n");
+    }
+
+    private void writeFlameNode(Writer out, CallNode node, long parentTime, long wholeTime) throws IOException {
+        if (parentTime <= 0 || wholeTime <= 0 || (double) node.totalTime / wholeTime < MIN_FLAME_WIDTH) {
+            return;
+        }
+        String name = StringEscapeUtils.escapeHtml(node.name);
+        out.write("<div class=\"node\" style=\"width: " + String.format("%.4f", 100.0 * node.totalTime / parentTime) + "%\">");
+        out.write("<div class=\"label\" title=\"" + name + "&#10;calls: " + node.calls + ", total: " + millis(node.totalTime)
+                + " ms, self: " + millis(node.selfTime) + " ms (" + percent(node.totalTime, wholeTime) + "%)\">" + name + "</div>");
+        if (!node.children.isEmpty()) {
+            out.write("<div class=\"row\">");
+            for (CallNode child : node.children.values()) {
+                writeFlameNode(out, child, node.totalTime, wholeTime);
+            }
+            out.write("</div>");
+        }
+        out.write("</div>\n");
+    }
+
+    /**
+     * Writes "caller;callee;... self time in microseconds" lines, the format flame graph tools take.
+     */
+    private void writeCollapsed(Writer out, CallNode node, String prefix) throws IOException {
+        String path = prefix + node.name.replace(';', ':');
+        long micros = node.selfTime / 1000;
+        if (micros > 0) {
+            out.write(path + " " + micros + "\n");
+        }
+        for (CallNode child : node.children.values()) {
+            writeCollapsed(out, child, path + ";");
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    private static String percent(long value, long whole) {
+        return whole > 0 ? String.format("%.2f", 100.0 * value / whole) : "-";
+    }
+
+    public static class MethodStats {
+        private String name;
+        private int calls;
+        private long selfTime;
+        private long totalTime;
+
+        MethodStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCalls() {
+            return calls;
+        }
+
+        /**
+         * Returns the time spent in the method itself, excluding the methods it called, in nanoseconds.
+         */
+        public long getSelfTime() {
+            return selfTime;
+        }
+
+        /**
+         * Returns the time spent in the method including the methods it called, in nanoseconds.
+         * Recursive calls are counted once.
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+    }
+
+    /**
+     * A node of the call tree merged by call path.
+     */
+    private static class CallNode {
+        private String name;
+        private Map<String, CallNode> children = new LinkedHashMap<String, CallNode>();
+        private int calls;
+        private long selfTime;
+        private long totalTime;
+
+        CallNode(String name) {
+            this.name = name;
+        }
+
+        CallNode getChild(String name) {
+            CallNode child = children.get(name);
+            if (child == null) {
+                child = new CallNode(name);
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+
+    private static class Frame {
+        private CallNode node;
+        private Kind kind;
+        private long startTime;
+        private long childTime = 0;
+
+        Frame(CallNode node, Kind kind, long startTime) {
+            this.node = node;
+            this.kind = kind;
+            this.startTime = startTime;
+        }
+    }
+}
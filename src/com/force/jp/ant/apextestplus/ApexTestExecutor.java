@@ -0,0 +1,13 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import com.sforce.soap.apex.RunTestsRequest;
+
+/**
+ * Runs Apex tests. Implementations must allow run() to be called from several threads at the same time.
+ */
+public interface ApexTestExecutor {
+    TestRun run(RunTestsRequest request) throws Exception;
+}
@@ -4,13 +4,26 @@
 package com.force.jp.ant.apextestplus;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang.StringEscapeUtils;
@@ -21,12 +34,45 @@ import com.sforce.soap.apex.CodeLocation;
 
 public class ClassCoverageResult {
     public enum STATUS {COVERED, NOTCOVERED, IGNORED}
+
+    public static final int HEAT_LEVELS = 5;
+
+    /** Change this whenever the layout of the page changes, so that incremental reports render pages again. */
+    private static final int PAGE_VERSION = 3;
+    private static final int HOTTEST_LINES = 10;
+
+    /**
+     * Orders locations by time, then by execution count, the hottest first.
+     */
+    public static final Comparator<CodeLocationStatus> HOTTEST_FIRST = new Comparator<CodeLocationStatus>() {
+        public int compare(CodeLocationStatus l1, CodeLocationStatus l2) {
+            if (l1.getTime() != l2.getTime()) {
+                return Double.compare(l2.getTime(), l1.getTime());
+            } else if (l1.getNumExecutions() != l2.getNumExecutions()) {
+                return l2.getNumExecutions() - l1.getNumExecutions();
+            }
+            return l1.getLine() - l2.getLine();
+        }
+    };
     
     private String className;
     private String coverageWarning;
     private int numLocations;
     private int numLocationsNotCovered;
-    private Map<Integer, CodeLocationStatus> lineCoverages = new HashMap<Integer, CodeLocationStatus>();
+    private int numResults;
+    private int numWarnings;
+    private int lastWarnedRun = -1;
+
+    // coverage of each line is kept in bit sets and primitive arrays indexed by line number,
+    // instead of holding on to CodeLocation objects.
+    // lines with execution counts or times are kept apart from coverage, which is only reported for lines not covered
+    private BitSet linesWithHeat = new BitSet();
+    private BitSet linesNotCovered = new BitSet();
+    private int[] numLocationsNotCoveredByLine = new int[0];
+    private int[] columns = new int[0];
+    private int[] numExecutions = new int[0];
+    private double[] times = new double[0];
+    private boolean hasHeat = false;
     
     public ClassCoverageResult(String className) {
         this.className = className;
@@ -36,17 +82,112 @@ public class ClassCoverageResult {
         return className;
     }
     
-    public void setCoverageWarning(CodeCoverageWarning warning) {
+    /**
+     * Sets the coverage warning reported by the given run. A run counts once however many warnings it reported.
+     */
+    public void setCoverageWarning(CodeCoverageWarning warning, int run) {
         this.coverageWarning = warning.getMessage();
+        if (run != lastWarnedRun) {
+            this.numWarnings++;
+            this.lastWarnedRun = run;
+        }
     }
     
     public void addCoverageResult(CodeCoverageResult result) {
-        this.numLocations = result.getNumLocations();
-        this.numLocationsNotCovered = result.getNumLocationsNotCovered();
-        
-        for (CodeLocation loc : result.getLocationsNotCovered()) {
-            lineCoverages.put(loc.getLine(), new CodeLocationStatus(loc, STATUS.NOTCOVERED));
+        if (numResults == 0) {
+            this.numLocations = result.getNumLocations();
+            this.numLocationsNotCovered = result.getNumLocationsNotCovered();
             
+            for (CodeLocation loc : result.getLocationsNotCovered()) {
+                setLocation(loc, linesNotCovered);
+                if (loc.getLine() >= 0) {
+                    numLocationsNotCoveredByLine[loc.getLine()]++;
+                }
+            }
+        } else {
+            // merge with the result of another run: a location is not covered
+            // only when it was not covered by this run either.
+            // locations are told apart by line, so a line keeps the smaller number of locations not covered by either run
+            int[] numNotCovered = new int[numLocationsNotCoveredByLine.length];
+            for (CodeLocation loc : result.getLocationsNotCovered()) {
+                if (loc.getLine() >= 0 && linesNotCovered.get(loc.getLine())) {
+                    numNotCovered[loc.getLine()]++;
+                }
+            }
+
+            int numMergedNotCovered = 0;
+            for (int line = linesNotCovered.nextSetBit(0); line >= 0; line = linesNotCovered.nextSetBit(line + 1)) {
+                numLocationsNotCoveredByLine[line] = Math.min(numLocationsNotCoveredByLine[line], numNotCovered[line]);
+                if (numLocationsNotCoveredByLine[line] > 0) {
+                    numMergedNotCovered += numLocationsNotCoveredByLine[line];
+                } else {
+                    // covered by this run
+                    linesNotCovered.clear(line);
+                }
+            }
+
+            this.numLocations = Math.max(numLocations, result.getNumLocations());
+            this.numLocationsNotCovered = numMergedNotCovered;
+        }
+        addHeat(result);
+        this.numResults++;
+    }
+
+    /**
+     * Adds the execution counts and times of the methods, DML, SOQL and SOSL in the result to those of their lines.
+     * A line that appears in more than one of them counts once with the largest values,
+     * and the values of different runs are added up.
+     */
+    private void addHeat(CodeCoverageResult result) {
+        Map<Integer, CodeLocation> heat = new HashMap<Integer, CodeLocation>();
+        for (CodeLocation[] locations : new CodeLocation[][] {result.getMethodInfo(), result.getDmlInfo(), result.getSoqlInfo(), result.getSoslInfo()}) {
+            if (locations == null) {
+                continue;
+            }
+            for (CodeLocation loc : locations) {
+                if (loc.getLine() < 0 || (loc.getNumExecutions() <= 0 && loc.getTime() <= 0)) {
+                    continue;
+                }
+                CodeLocation max = heat.get(loc.getLine());
+                if (max == null || loc.getTime() > max.getTime() || (loc.getTime() == max.getTime() && loc.getNumExecutions() > max.getNumExecutions())) {
+                    heat.put(loc.getLine(), loc);
+                }
+            }
+        }
+
+        for (CodeLocation loc : heat.values()) {
+            int line = loc.getLine();
+            ensureCapacity(line);
+            if (!linesWithHeat.get(line) && !linesNotCovered.get(line)) {
+                columns[line] = loc.getColumn();
+            }
+            numExecutions[line] += loc.getNumExecutions();
+            times[line] += loc.getTime();
+            linesWithHeat.set(line);
+            hasHeat = true;
+        }
+    }
+
+    private void setLocation(CodeLocation loc, BitSet lines) {
+        int line = loc.getLine();
+        if (line < 0) {
+            return;
+        }
+
+        ensureCapacity(line);
+        columns[line] = loc.getColumn();
+        numExecutions[line] = loc.getNumExecutions();
+        times[line] = loc.getTime();
+        lines.set(line);
+    }
+    
+    private void ensureCapacity(int line) {
+        if (line >= columns.length) {
+            int capacity = Math.max(line + 1, columns.length * 2);
+            columns = Arrays.copyOf(columns, capacity);
+            numLocationsNotCoveredByLine = Arrays.copyOf(numLocationsNotCoveredByLine, capacity);
+            numExecutions = Arrays.copyOf(numExecutions, capacity);
+            times = Arrays.copyOf(times, capacity);
         }
     }
     
@@ -70,26 +211,135 @@ public class ClassCoverageResult {
         }
     }
 
+    /**
+     * Returns the coverage warning of this class.
+     * When results of several runs are merged, the warning is reported only when every run reported it.
+     */
     public String getCoverageWarning() {
-        return coverageWarning;
+        return numWarnings >= numResults ? coverageWarning : null;
     }
 
     public STATUS getCoverageStatus(int line) {
-        CodeLocationStatus status = lineCoverages.get(line);
-        if (status != null) {
-            return status.getStatus();
+        if (line < 0) {
+            return STATUS.IGNORED;
+        } else if (linesNotCovered.get(line)) {
+            return STATUS.NOTCOVERED;
         } else {
             return STATUS.IGNORED;
         }
     }
+
+    /**
+     * Returns the status of the location at the line, or null if the line is neither not covered nor executed.
+     */
+    public CodeLocationStatus getLocationStatus(int line) {
+        STATUS status = getCoverageStatus(line);
+        if (status == STATUS.IGNORED && (line < 0 || !linesWithHeat.get(line))) {
+            return null;
+        }
+        return new CodeLocationStatus(line, columns[line], numExecutions[line], times[line], status);
+    }
     
+    /**
+     * Returns true if execution counts or times of any line are known.
+     */
+    public boolean hasHeat() {
+        return hasHeat;
+    }
+
+    /**
+     * Returns the total time spent on the lines of this class in milliseconds.
+     */
+    public double getTotalTime() {
+        double total = 0;
+        for (int line = linesWithHeat.nextSetBit(0); line >= 0; line = linesWithHeat.nextSetBit(line + 1)) {
+            total += times[line];
+        }
+        return total;
+    }
+
+    /**
+     * Returns up to max lines that took the longest time, or were executed the most times for the same time.
+     */
+    public List<CodeLocationStatus> getHottestLines(int max) {
+        List<CodeLocationStatus> lines = new ArrayList<CodeLocationStatus>();
+        if (!hasHeat) {
+            return lines;
+        }
+        for (int line = linesWithHeat.nextSetBit(0); line >= 0; line = linesWithHeat.nextSetBit(line + 1)) {
+            if (numExecutions[line] > 0 || times[line] > 0) {
+                lines.add(getLocationStatus(line));
+            }
+        }
+        Collections.sort(lines, HOTTEST_FIRST);
+        return lines.size() > max ? new ArrayList<CodeLocationStatus>(lines.subList(0, max)) : lines;
+    }
+
+    /**
+     * Returns the heat level of the line from 1 to HEAT_LEVELS, or 0 if nothing is known about it.
+     * Levels are on a log scale relative to the hottest line of this class, by time if any time is known
+     * and by execution count otherwise.
+     */
+    private int getHeatLevel(int line, double maxTime, int maxExecutions) {
+        if (line >= times.length) {
+            return 0;
+        }
+        double value = maxTime > 0 ? times[line] : numExecutions[line];
+        double max = maxTime > 0 ? maxTime : maxExecutions;
+        if (value <= 0 || max <= 0) {
+            return 0;
+        }
+        return Math.max(1, (int) Math.ceil(HEAT_LEVELS * Math.log1p(value) / Math.log1p(max)));
+    }
+
+    /**
+     * Adds everything the page of this class is rendered from, except the source, to the digest.
+     */
+    public void updateDigest(MessageDigest md) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(PAGE_VERSION);
+        out.writeUTF(className);
+        out.writeUTF(getCoverageWarning() != null ? getCoverageWarning() : "");
+        out.writeInt(numLocations);
+        out.writeInt(numLocationsNotCovered);
+        out.writeBoolean(hasHeat);
+        for (int line = linesWithHeat.nextSetBit(0); line >= 0; line = linesWithHeat.nextSetBit(line + 1)) {
+            out.writeInt(line);
+            out.writeInt(columns[line]);
+            out.writeInt(numExecutions[line]);
+            out.writeDouble(times[line]);
+        }
+        out.writeInt(-1);
+        for (int line = linesNotCovered.nextSetBit(0); line >= 0; line = linesNotCovered.nextSetBit(line + 1)) {
+            out.writeInt(line);
+            out.writeInt(columns[line]);
+        }
+        out.flush();
+        md.update(bytes.toByteArray());
+    }
+
     public void toHtml(File src, File result) throws IOException {
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(result), "UTF-8"), 64 * 1024);
+            toHtml(src, out);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the coverage result of the source to the writer, line by line as the source is read.
+     */
+    public void toHtml(File src, Writer writer) throws IOException {
         BufferedReader in = null;
-        PrintStream out = null;
+        PrintWriter out = new PrintWriter(writer);
 
         try {
             in = new BufferedReader(new InputStreamReader(new FileInputStream(src), "UTF-8"));
-            out = new PrintStream(result, "UTF-8");
             
             out.println("<html>");
             out.println("<head>");
@@ -98,9 +348,24 @@ public class ClassCoverageResult {
             out.println("</head>");
             out.println("<body>");
             out.println("<h1>" + className + ": " + (getPctCoverage() != null ? getPctCoverage() : "-") + " % (" + getNumLocationsCovered() + "/" + getNumLocations() + ")" + "</h1>");
+
+            double maxTime = 0;
+            int maxExecutions = 0;
+            if (hasHeat) {
+                for (int i = linesWithHeat.nextSetBit(0); i >= 0; i = linesWithHeat.nextSetBit(i + 1)) {
+                    maxTime = Math.max(maxTime, times[i]);
+                    maxExecutions = Math.max(maxExecutions, numExecutions[i]);
+                }
+                writeHottestLines(out);
+            }
+
             out.println("<table border=\"0\" cellpadding=\"0\" cellspacing=\"0\" colspan=\"5\">");
             out.println("<tr>");
             out.println("    <td class=\"graphHeader\"><b>&nbsp;line</b></td>");
+            if (hasHeat) {
+                out.println("    <td class=\"graphHeader\"><b>&nbsp;executions</b></td>");
+                out.println("    <td class=\"graphHeader\"><b>&nbsp;time</b></td>");
+            }
             out.println("    <td class=\"graphHeader\"><b>&nbsp;source</b></td>");
             out.println("</tr>");
 
@@ -123,8 +388,21 @@ public class ClassCoverageResult {
                     break;
                 }
 
-                out.println("<tr>");
-                out.println("    <td align=\"right\" class=\"lineCount\">" + lineNo + "</td>");
+                if (hasHeat) {
+                    int level = getHeatLevel(lineNo, maxTime, maxExecutions);
+                    if (level > 0) {
+                        lineClass += " heat" + level;
+                    }
+                    boolean known = lineNo < times.length && (numExecutions[lineNo] > 0 || times[lineNo] > 0);
+
+                    out.println("<tr id=\"L" + lineNo + "\">");
+                    out.println("    <td align=\"right\" class=\"lineCount\">" + lineNo + "</td>");
+                    out.println("    <td align=\"right\" class=\"lineCount\">" + (known ? String.valueOf(numExecutions[lineNo]) : "") + "</td>");
+                    out.println("    <td align=\"right\" class=\"lineCount\">" + (known ? formatTime(times[lineNo]) : "") + "</td>");
+                } else {
+                    out.println("<tr>");
+                    out.println("    <td align=\"right\" class=\"lineCount\">" + lineNo + "</td>");
+                }
                 out.println("    <td class=\"srcCell\"><span class=\"" + lineClass + "\">" + StringEscapeUtils.escapeHtml(line) + "</span></td>");
                 out.println("</tr>");
             }
@@ -133,6 +411,10 @@ public class ClassCoverageResult {
             out.println("</body>");
             out.println("</html>");
 
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("Failed to write coverage result: " + className);
+            }
         } finally {
             if (in != null) {
                 try {
@@ -140,28 +422,64 @@ public class ClassCoverageResult {
                 } catch (IOException e) {
                 }
             }
-            
-            if (out != null) {
-                out.close();
-            }
         }
     }
     
+    /**
+     * Formats a time in milliseconds in seconds, the unit of the other times in the report.
+     */
+    static String formatTime(double millis) {
+        return String.format("%.3f", millis / 1000) + " sec";
+    }
+
+    private void writeHottestLines(PrintWriter out) {
+        out.println("<h2>Hottest Lines</h2>");
+        out.println("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">");
+        out.println("<thead class=\"rich-table-thead\">");
+        out.println("    <tr class=\"headerRow\">");
+        out.println("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Line</th>");
+        out.println("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Executions</th>");
+        out.println("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Time</th>");
+        out.println("    </tr>");
+        out.println("</thead>");
+        out.println("<tbody>");
+        for (CodeLocationStatus hot : getHottestLines(HOTTEST_LINES)) {
+            out.println("    <tr class=\"dataRow\">");
+            out.println("        <td class=\"dataCell\" colspan=\"1\"><a href=\"#L" + hot.getLine() + "\">" + hot.getLine() + "</a></td>");
+            out.println("        <td class=\"dataCell\" colspan=\"1\">" + hot.getNumExecutions() + "</td>");
+            out.println("        <td class=\"dataCell\" colspan=\"1\">" + formatTime(hot.getTime()) + "</td>");
+            out.println("    </tr>");
+        }
+        out.println("</tbody>");
+        out.println("</table>");
+        out.println("<h2>Source</h2>");
+    }
+
     @Override
     public String toString() {
-        if (coverageWarning == null) {
+        if (getCoverageWarning() == null) {
             return className + ": " + getPctCoverage() + "% (" + getNumLocationsCovered() + "/" + getNumLocations() + ")";
         } else {
-            return className + ": " + getPctCoverage() + "% (" + getNumLocationsCovered() + "/" + getNumLocations() + ") - " + coverageWarning;
+            return className + ": " + getPctCoverage() + "% (" + getNumLocationsCovered() + "/" + getNumLocations() + ") - " + getCoverageWarning();
         }
     }
 
     public static class CodeLocationStatus {
-        private CodeLocation location;
+        private int line;
+        private int column;
+        private int numExecutions;
+        private double time;
         private STATUS status;
 
         public CodeLocationStatus(CodeLocation location, STATUS status) {
-            this.location = location;
+            this(location.getLine(), location.getColumn(), location.getNumExecutions(), location.getTime(), status);
+        }
+
+        public CodeLocationStatus(int line, int column, int numExecutions, double time, STATUS status) {
+            this.line = line;
+            this.column = column;
+            this.numExecutions = numExecutions;
+            this.time = time;
             setStatus(status);
         }
 
@@ -174,19 +492,19 @@ public class ClassCoverageResult {
         }
 
         public int getColumn() {
-            return location.getColumn();
+            return column;
         }
 
         public int getLine() {
-            return location.getLine();
+            return line;
         }
 
         public int getNumExecutions() {
-            return location.getNumExecutions();
+            return numExecutions;
         }
 
         public double getTime() {
-            return location.getTime();
+            return time;
         }
     }
 }
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An index of the blocks of each test method in debug.log, used by the indexed log storage
+ * instead of copying the blocks to a log file per method.
+ *
+ * The index is kept in debug.idx next to debug.log as a binary file: the class name, the method name
+ * and the [start, end) byte offsets of the blocks of each method. The report links to a viewer page
+ * that fetches those ranges of debug.log.
+ */
+public class DebugLogIndex {
+    public static final String LOG_FILENAME = "debug.log";
+    public static final String INDEX_FILENAME = "debug.idx";
+    public static final String VIEWER_FILENAME = "debuglog-viewer.html";
+
+    private static final int MAGIC = 0x41545049; // "ATPI"
+    private static final int VERSION = 1;
+
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Loads the index saved in the directory. Returns an empty index if nothing has been saved yet.
+     */
+    public static DebugLogIndex load(File debugLogDir) throws IOException {
+        DebugLogIndex index = new DebugLogIndex();
+        File file = new File(debugLogDir, INDEX_FILENAME);
+        if (!file.exists()) {
+            return index;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported file format: " + file.getAbsolutePath());
+            }
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String className = in.readUTF();
+                String methodName = in.readUTF();
+                int numRanges = in.readInt();
+                for (int j = 0; j < numRanges; j++) {
+                    index.add(className, methodName, in.readLong(), in.readLong());
+                }
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return index;
+    }
+
+    public void save(File debugLogDir) throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(debugLogDir, INDEX_FILENAME))));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.className);
+                out.writeUTF(entry.methodName);
+                out.writeInt(entry.size / 2);
+                for (int i = 0; i < entry.size; i++) {
+                    out.writeLong(entry.ranges[i]);
+                }
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a block of the method. A block that starts where the previous one ended is merged into it.
+     */
+    public synchronized void add(String className, String methodName, long start, long end) {
+        String key = className + "." + methodName;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(className, methodName);
+            entries.put(key, entry);
+        }
+        entry.add(start, end);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the byte ranges of the blocks of the method as "start-end,start-end,...", the end being exclusive,
+     * or null if the method has no block.
+     */
+    public synchronized String getRanges(String className, String methodName) {
+        Entry entry = entries.get(className + "." + methodName);
+        if (entry == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < entry.size; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(entry.ranges[i]).append('-').append(entry.ranges[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the fragment of the link to the viewer page that shows the blocks of the method.
+     */
+    public String getViewerFragment(String className, String methodName) {
+        return LOG_FILENAME + ":" + getRanges(className, methodName);
+    }
+
+    /**
+     * Returns the number of bytes the string takes in UTF-8, the way OutputStreamWriter encodes it:
+     * an unpaired surrogate is replaced with a single byte.
+     */
+    public static int utf8Length(String s) {
+        int length = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static class Entry {
+        private final String className;
+        private final String methodName;
+        private long[] ranges = new long[2];
+        private int size;
+
+        Entry(String className, String methodName) {
+            this.className = className;
+            this.methodName = methodName;
+        }
+
+        void add(long start, long end) {
+            if (size > 0 && ranges[size - 1] == start) {
+                ranges[size - 1] = end;
+                return;
+            }
+            if (size == ranges.length) {
+                ranges = Arrays.copyOf(ranges, size * 2);
+            }
+            ranges[size++] = start;
+            ranges[size++] = end;
+        }
+    }
+}
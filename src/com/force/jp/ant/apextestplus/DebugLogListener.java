@@ -0,0 +1,22 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+/**
+ * Receives the lines of a debug log while it is split by test method.
+ */
+public interface DebugLogListener {
+    /**
+     * Called when a block of debug logs is credited to a test method.
+     * Blocks of asynchronous calls are credited to the test method that ran before them.
+     */
+    void blockStarted(String className, String methodName);
+
+    /**
+     * Called for each line of the current block, including the first and the last one.
+     */
+    void lineRead(String line);
+
+    void blockFinished();
+}
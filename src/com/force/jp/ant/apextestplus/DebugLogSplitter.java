@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a debug log by test class and method in a single pass.
+ * Each line is routed to the log file of the test method it belongs to as soon as it is read,
+ * so memory usage doesn't depend on the size of the debug log. Lines read before the test method of a block
+ * is known are held in memory up to a limit, and in a temporary file beyond it.
+ */
+public class DebugLogSplitter {
+    private static final Pattern CODE_UNIT_PATTERN = Pattern.compile("\\|CODE_UNIT_STARTED\\|.+\\|(.+)\\.(.+)$");
+
+    // lines are written to the log files and the raw copy of the indexed log storage with the same separator
+    // as the blank line at the end of each block
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final int LINE_SEPARATOR_LENGTH = DebugLogIndex.utf8Length(LINE_SEPARATOR);
+
+    // characters of pending lines held in memory before they are moved to a temporary file
+    private static final int MAX_PENDING_CHARS = 1024 * 1024;
+
+    private File debugLogDir;
+    private Map<String, TestClassResult> testClassResults;
+    private LogSinkManager sinks;
+    private List<DebugLogListener> listeners = new ArrayList<DebugLogListener>();
+
+    private boolean inBlock = false;
+    // lines read before 'CODE_UNIT_STARTED' are kept until the owner of the block is known
+    private List<String> pendingLines = new ArrayList<String>();
+    private long pendingChars = 0;
+    private File pendingFile = null;
+    private Writer pendingWriter = null;
+    private Writer sink = null;
+    private String prevClassName = null;
+    private String prevMethodName = null;
+
+    // indexed log storage: blocks are recorded as byte ranges of the raw copy instead of being written to sinks
+    private DebugLogIndex index = null;
+    private File rawCopyFile;
+    private long offset;
+    private long lineStart;
+    private long pendingStart;
+    private TestClassResult blockOwner = null;
+    private String blockMethodName;
+    private long blockStart;
+
+    public DebugLogSplitter(File debugLogDir, Map<String, TestClassResult> testClassResults, LogSinkManager sinks) {
+        this.debugLogDir = debugLogDir;
+        this.testClassResults = testClassResults;
+        this.sinks = sinks;
+    }
+
+    public void addListener(DebugLogListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Records the blocks of each test method in the index as byte ranges of the raw copy,
+     * instead of writing them to a log file per method.
+     * Lines are then written to the raw copy terminated by the line separator, so that the ranges can be computed from the lines.
+     * offset is the number of bytes already in rawCopyFile, e.g. written by previous runs.
+     */
+    public void setIndex(DebugLogIndex index, File rawCopyFile, long offset) {
+        this.index = index;
+        this.rawCopyFile = rawCopyFile;
+        this.offset = offset;
+    }
+
+    /**
+     * Reads the debug log to the end, writing every character read to rawCopy as it is
+     * and each test method execution block to the log file of that method.
+     */
+    public void split(Reader debugLog, Writer rawCopy) throws IOException {
+        if (index != null) {
+            splitIndexed(debugLog, rawCopy);
+            return;
+        }
+
+        BufferedReader in = new BufferedReader(new CopyingReader(debugLog, rawCopy));
+        String line = null;
+
+        try {
+            while ((line = in.readLine()) != null) {
+                processLine(line);
+            }
+        } finally {
+            clearPendingLines();
+        }
+    }
+
+    private void splitIndexed(Reader debugLog, Writer rawCopy) throws IOException {
+        BufferedReader in = new BufferedReader(debugLog);
+        String line = null;
+
+        try {
+            while ((line = in.readLine()) != null) {
+                lineStart = offset;
+                rawCopy.write(line);
+                rawCopy.write(LINE_SEPARATOR);
+                offset += DebugLogIndex.utf8Length(line) + LINE_SEPARATOR_LENGTH;
+                processLine(line);
+            }
+        } finally {
+            clearPendingLines();
+        }
+
+        // the last block has no end when the debug log was truncated
+        closeBlock(offset);
+    }
+
+    private boolean isSinkOpen() {
+        return sink != null || blockOwner != null;
+    }
+
+    /**
+     * Records the block being read in the index, ending at the given offset.
+     */
+    private void closeBlock(long end) {
+        if (blockOwner != null) {
+            blockOwner.addDebugLogRange(index, rawCopyFile, blockMethodName, blockStart, end);
+            blockOwner = null;
+        }
+    }
+
+    private void processLine(String line) throws IOException {
+        if (line.endsWith("|EXECUTION_STARTED")) {
+            // found the beginning of a test method execution
+            closeBlock(lineStart);
+            sink = null;
+            clearPendingLines();
+            inBlock = true;
+        }
+
+        if (!inBlock) {
+            return;
+        }
+
+        if (isSinkOpen()) {
+            writeLine(line);
+        } else {
+            addPendingLine(line);
+
+            // try to find 'CODE_UNIT_STARTED' line to get class name and method name
+            Matcher m = CODE_UNIT_PATTERN.matcher(line);
+            if (m.find()) {
+                openSink(m.group(1), m.group(2));
+            }
+        }
+
+        if (line.endsWith("|EXECUTION_FINISHED")) {
+            // found the end of a test method execution
+            if (!isSinkOpen()) {
+                openSink(null, null);
+            }
+            if (isSinkOpen()) {
+                if (sink != null) {
+                    sink.write(LINE_SEPARATOR);
+                }
+                closeBlock(offset);
+                for (DebugLogListener listener : listeners) {
+                    listener.blockFinished();
+                }
+            }
+            sink = null;
+            clearPendingLines();
+            inBlock = false;
+        }
+    }
+
+    private void openSink(String className, String methodName) throws IOException {
+        TestClassResult classResult = className == null ? null : testClassResults.get(className);
+        if (classResult != null) {
+            prevClassName = className;
+            prevMethodName = methodName;
+        } else if (prevClassName != null) {
+            // this block of debug logs may be generated by asynchronous calls, such as @future or Batch Apex
+            // let's append it to that for previous Apex test call
+            classResult = testClassResults.get(prevClassName);
+            methodName = prevMethodName;
+        }
+
+        if (classResult == null) {
+            // nobody to credit this block to, just skip it
+            clearPendingLines();
+            return;
+        }
+
+        if (index != null) {
+            blockOwner = classResult;
+            blockMethodName = methodName;
+            blockStart = pendingStart;
+        } else {
+            sink = classResult.getDebugLogWriter(sinks, debugLogDir, methodName);
+        }
+        for (DebugLogListener listener : listeners) {
+            listener.blockStarted(classResult.getClassName(), methodName);
+        }
+        writePendingLines();
+    }
+
+    private void addPendingLine(String line) throws IOException {
+        if (pendingLines.isEmpty() && pendingWriter == null) {
+            pendingStart = lineStart;
+        }
+        if (pendingWriter != null) {
+            pendingWriter.write(line);
+            pendingWriter.write('\n');
+            return;
+        }
+
+        pendingLines.add(line);
+        pendingChars += line.length();
+        if (pendingChars > MAX_PENDING_CHARS) {
+            // the test method of this block is found late, e.g. after a long static initializer
+            pendingFile = File.createTempFile("apextestplus-pending", ".log");
+            pendingWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pendingFile), "UTF-8"));
+            for (String pending : pendingLines) {
+                pendingWriter.write(pending);
+                pendingWriter.write('\n');
+            }
+            pendingLines.clear();
+            pendingChars = 0;
+        }
+    }
+
+    private void writePendingLines() throws IOException {
+        if (pendingWriter != null) {
+            pendingWriter.close();
+            pendingWriter = null;
+            BufferedReader in = null;
+            try {
+                in = new BufferedReader(new InputStreamReader(new FileInputStream(pendingFile), "UTF-8"));
+                String line = null;
+                while ((line = in.readLine()) != null) {
+                    writeLine(line);
+                }
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+        for (String pending : pendingLines) {
+            writeLine(pending);
+        }
+        clearPendingLines();
+    }
+
+    private void clearPendingLines() {
+        pendingLines.clear();
+        pendingChars = 0;
+        if (pendingWriter != null) {
+            try {
+                pendingWriter.close();
+            } catch (IOException e) {
+            }
+            pendingWriter = null;
+        }
+        if (pendingFile != null) {
+            pendingFile.delete();
+            pendingFile = null;
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        if (sink != null) {
+            sink.write(line);
+            sink.write(LINE_SEPARATOR);
+        }
+        for (DebugLogListener listener : listeners) {
+            listener.lineRead(line);
+        }
+    }
+
+    /**
+     * A Reader that copies every character read from the underlying reader to a Writer.
+     */
+    private static class CopyingReader extends FilterReader {
+        private Writer copy;
+
+        CopyingReader(Reader in, Writer copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                copy.write(c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = super.read(cbuf, off, len);
+            if (n > 0) {
+                copy.write(cbuf, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip() is not supported");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * How often each test method passed only on a retry after failing, over the runs with retries.
+ * The flakiness score of a method is the percentage of its runs that were flaky.
+ *
+ * Counts are saved as a properties file whose keys are "class.method" and values are "runs,flaky".
+ * Methods whose score reaches a threshold after enough runs are listed one per line in a quarantine file,
+ * which can be used to exclude them from runs that must be reliable.
+ */
+public class FlakinessIndex {
+    public static final String FILENAME = "flakiness.properties";
+    public static final String QUARANTINE_FILENAME = "quarantine.txt";
+
+    /** The number of runs required before a method can be put in quarantine. */
+    public static final int MIN_RUNS = 5;
+
+    private Map<String, int[]> counts = new TreeMap<String, int[]>();
+
+    /**
+     * Loads the counts saved in the directory, or returns an empty index if there are none.
+     */
+    public static FlakinessIndex load(File dir) throws IOException {
+        FlakinessIndex index = new FlakinessIndex();
+        File file = new File(dir, FILENAME);
+        if (!file.exists()) {
+            return index;
+        }
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            props.load(in);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        for (String method : props.stringPropertyNames()) {
+            String[] values = props.getProperty(method).split(",");
+            try {
+                index.counts.put(method, new int[] {Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim())});
+            } catch (RuntimeException e) {
+                // ignore broken entries
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Counts a run of every test method in the result, except those carried forward,
+     * and a flaky run of those marked as flaky.
+     */
+    public void update(TestResult tr) {
+        for (TestClassResult tcr : tr.getTestClassResults()) {
+            if (tcr.isCarriedForward()) {
+                continue;
+            }
+            for (String methodName : tcr.getMethodTimes().keySet()) {
+                String method = tcr.getClassName() + "." + methodName;
+                int[] count = counts.get(method);
+                if (count == null) {
+                    count = new int[2];
+                    counts.put(method, count);
+                }
+                count[0]++;
+                if (tcr.isFlaky(methodName)) {
+                    count[1]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the percentage of the runs of the method that were flaky, or 0 if it has never run.
+     */
+    public int getScore(String method) {
+        int[] count = counts.get(method);
+        return count != null && count[0] > 0 ? count[1] * 100 / count[0] : 0;
+    }
+
+    /**
+     * Returns the methods run at least MIN_RUNS times whose score is at or over the threshold.
+     */
+    public List<String> getQuarantined(int threshold) {
+        List<String> quarantined = new ArrayList<String>();
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            if (entry.getValue()[0] >= MIN_RUNS && entry.getValue()[1] > 0 && getScore(entry.getKey()) >= threshold) {
+                quarantined.add(entry.getKey());
+            }
+        }
+        return quarantined;
+    }
+
+    /**
+     * Saves the counts and the quarantine list for the threshold to the directory.
+     */
+    public void save(File dir, int threshold) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+
+        Properties props = new Properties();
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            props.setProperty(entry.getKey(), entry.getValue()[0] + "," + entry.getValue()[1]);
+        }
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(new File(dir, FILENAME)));
+            props.store(out, "Runs and flaky runs of each test method");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, QUARANTINE_FILENAME)), "UTF-8"));
+            for (String method : getQuarantined(threshold)) {
+                writer.write(method + "\n");
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Governor limit usage of each test method, read from the LIMIT_USAGE_FOR_NS sections of its debug logs.
+ * When a method has several sections, e.g. of asynchronous calls, the largest usage of each limit is taken
+ * since limits apply to each transaction.
+ *
+ * The usage of each run is saved as a properties file whose keys are "class.method|limit" and values are
+ * "used/maximum", so that it can be compared with the next run.
+ */
+public class GovernorLimitUsage implements DebugLogListener {
+    public static final String FILENAME = "limit-usage.properties";
+    public static final String REPORT_FILENAME = "limits.html";
+
+    private static final Pattern NAMESPACE_PATTERN = Pattern.compile("\\|LIMIT_USAGE_FOR_NS\\|([^|]*)\\|");
+    private static final Pattern USAGE_PATTERN = Pattern.compile("^\\s+(.+?): (\\d+) out of (\\d+)");
+    private static final String DEFAULT_NAMESPACE = "(default)";
+
+    private Map<String, Map<String, Usage>> usages = new TreeMap<String, Map<String, Usage>>();
+    private Properties previous = new Properties();
+
+    private Map<String, Usage> current = null;
+    private String namespace = null;
+
+    /**
+     * Creates an instance that compares usage with the one saved in the directory, if any.
+     */
+    public static GovernorLimitUsage load(File dir) throws IOException {
+        GovernorLimitUsage result = new GovernorLimitUsage();
+        File file = new File(dir, FILENAME);
+        if (!file.exists()) {
+            return result;
+        }
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            result.previous.load(in);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Saves the usage of this run. Usage of methods of the classes that were not run this time is kept as it was,
+     * while the methods of the classes that were run are replaced so that deleted methods don't stay forever.
+     */
+    public void save(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+
+        Set<String> classesRun = new HashSet<String>();
+        for (String method : usages.keySet()) {
+            classesRun.add(getClassName(method));
+        }
+
+        Properties props = new Properties();
+        for (String key : previous.stringPropertyNames()) {
+            if (!classesRun.contains(getClassName(key))) {
+                props.setProperty(key, previous.getProperty(key));
+            }
+        }
+        for (Map.Entry<String, Map<String, Usage>> method : usages.entrySet()) {
+            for (Map.Entry<String, Usage> usage : method.getValue().entrySet()) {
+                props.setProperty(method.getKey() + "|" + usage.getKey(), usage.getValue().used + "/" + usage.getValue().maximum);
+            }
+        }
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(new File(dir, FILENAME)));
+            props.store(out, "Governor limit usage of Apex test methods");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Drops the previous usage of the test classes that are not among the given ones, e.g. because they were deleted.
+     * Nothing is dropped when no class is given, since there's nothing to tell which classes exist then.
+     */
+    public void retainClasses(Set<String> classNames) {
+        if (classNames.isEmpty()) {
+            return;
+        }
+        for (String key : previous.stringPropertyNames()) {
+            if (!classNames.contains(getClassName(key))) {
+                previous.remove(key);
+            }
+        }
+    }
+
+    private static String getClassName(String key) {
+        int end = key.indexOf('|');
+        String method = end < 0 ? key : key.substring(0, end);
+        int sep = method.lastIndexOf('.');
+        return sep > 0 ? method.substring(0, sep) : method;
+    }
+
+    public void blockStarted(String className, String methodName) {
+        String key = className + "." + methodName;
+        current = usages.get(key);
+        if (current == null) {
+            current = new LinkedHashMap<String, Usage>();
+            usages.put(key, current);
+        }
+        namespace = null;
+    }
+
+    public void lineRead(String line) {
+        if (namespace != null) {
+            Matcher m = USAGE_PATTERN.matcher(line);
+            if (m.find()) {
+                String limit = namespace.equals(DEFAULT_NAMESPACE) ? m.group(1) : namespace + ": " + m.group(1);
+                Usage usage = new Usage(Long.parseLong(m.group(2)), Long.parseLong(m.group(3)));
+                Usage max = current.get(limit);
+                if (max == null || usage.used > max.used) {
+                    current.put(limit, usage);
+                }
+                return;
+            } else if (line.trim().length() > 0) {
+                // the section ends with a blank line or the next event
+                namespace = null;
+            }
+        }
+
+        if (line.contains("|LIMIT_USAGE_FOR_NS|")) {
+            Matcher m = NAMESPACE_PATTERN.matcher(line);
+            if (m.find()) {
+                namespace = m.group(1);
+            }
+        }
+    }
+
+    public void blockFinished() {
+        current = null;
+        namespace = null;
+    }
+
+    public boolean isEmpty() {
+        for (Map<String, Usage> method : usages.values()) {
+            if (!method.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the usage of the limit by the method in the previous run, or null if unknown.
+     */
+    public Usage getPreviousUsage(String method, String limit) {
+        String value = previous.getProperty(method + "|" + limit);
+        if (value == null) {
+            return null;
+        }
+        int sep = value.indexOf('/');
+        try {
+            return new Usage(Long.parseLong(value.substring(0, sep)), Long.parseLong(value.substring(sep + 1)));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns "class.method: limit" of the usages at or over the threshold percentage.
+     */
+    public List<String> getUsagesOverThreshold(int threshold) {
+        List<String> found = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, Usage>> method : usages.entrySet()) {
+            for (Map.Entry<String, Usage> usage : method.getValue().entrySet()) {
+                if (usage.getValue().getPercentage() >= threshold) {
+                    found.add(method.getKey() + ": " + usage.getKey() + " " + usage.getValue());
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns "class.method: limit" of the usages that increased since the previous run.
+     */
+    public List<String> getRegressions() {
+        List<String> found = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, Usage>> method : usages.entrySet()) {
+            for (Map.Entry<String, Usage> usage : method.getValue().entrySet()) {
+                Usage prev = getPreviousUsage(method.getKey(), usage.getKey());
+                if (prev != null && usage.getValue().used > prev.used) {
+                    found.add(method.getKey() + ": " + usage.getKey() + " " + prev.used + " -> " + usage.getValue().used);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes a table of the limits used by each test method. Limits that are not used are left out.
+     */
+    public void writeReport(File outDir, int threshold) throws IOException {
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, REPORT_FILENAME)), "UTF-8"), 64 * 1024);
+            out.write("<html>\n");
+            out.write("<head>\n");
+            out.write("<title>Governor Limits</title>\n");
+            out.write("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+            out.write("<link href=\"coverage.css\" rel=\"stylesheet\" type=\"text/css\" />\n");
+            out.write("</head>\n");
+            out.write("<body>\n");
+            out.write("<h1>Governor Limits</h1>\n");
+            out.write("<p><a href=\"index.html\">Test Results</a> | Usage of " + threshold + "% or more is marked as a failure."
+                    + " Change is compared with the previous run.</p>\n");
+            out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+            out.write("<thead class=\"rich-table-thead\">\n");
+            out.write("    <tr class=\"headerRow\">\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Test Method</th>\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Limit</th>\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Used</th>\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Maximum</th>\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Usage</th>\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Headroom</th>\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Change</th>\n");
+            out.write("    </tr>\n");
+            out.write("</thead>\n");
+            out.write("<tbody>\n");
+
+            for (Map.Entry<String, Map<String, Usage>> method : usages.entrySet()) {
+                for (Map.Entry<String, Usage> entry : method.getValue().entrySet()) {
+                    Usage usage = entry.getValue();
+                    Usage prev = getPreviousUsage(method.getKey(), entry.getKey());
+                    if (usage.used == 0 && (prev == null || prev.used == 0)) {
+                        continue;
+                    }
+
+                    String change = "";
+                    if (prev == null) {
+                        change = "new";
+                    } else if (usage.used != prev.used) {
+                        change = (usage.used > prev.used ? "+" : "") + (usage.used - prev.used);
+                    }
+
+                    out.write("    <tr class=\"dataRow" + (usage.getPercentage() >= threshold ? " failure" : "") + "\">\n");
+                    out.write("        <td class=\"dataCell\" colspan=\"1\">" + StringEscapeUtils.escapeHtml(method.getKey()) + "</td>\n");
+                    out.write("        <td class=\"dataCell\" colspan=\"1\">" + StringEscapeUtils.escapeHtml(entry.getKey()) + "</td>\n");
+                    out.write("        <td class=\"dataCell\" colspan=\"1\">" + usage.used + "</td>\n");
+                    out.write("        <td class=\"dataCell\" colspan=\"1\">" + usage.maximum + "</td>\n");
+                    out.write("        <td class=\"dataCell\" colspan=\"1\">" + String.format(Locale.US, "%.1f", usage.getPercentage()) + "%</td>\n");
+                    out.write("        <td class=\"dataCell\" colspan=\"1\">" + String.format(Locale.US, "%.1f", 100 - usage.getPercentage()) + "%</td>\n");
+                    out.write("        <td class=\"dataCell\" colspan=\"1\">" + change + "</td>\n");
+                    out.write("    </tr>\n");
+                }
+            }
+
+            out.write("</tbody>\n");
+            out.write("</table>\n");
+            out.write("</body>\n");
+            out.write("</html>\n");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    public static class Usage {
+        private long used;
+        private long maximum;
+
+        public Usage(long used, long maximum) {
+            this.used = used;
+            this.maximum = maximum;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+
+        public long getMaximum() {
+            return maximum;
+        }
+
+        public double getPercentage() {
+            return maximum > 0 ? 100.0 * used / maximum : 0;
+        }
+
+        @Override
+        public String toString() {
+            return used + " out of " + maximum;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.CodeCoverageWarning;
+import com.sforce.soap.apex.CodeLocation;
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
+import com.sforce.soap.apex.RunTestsResult;
+
+/**
+ * The results that made up the report of the last run, kept so that results of test classes
+ * that are not run this time can be carried forward.
+ */
+public class LastRunResults {
+    public static final String FILENAME = "last-results.dat";
+
+    /**
+     * Loads the results saved in the directory. Returns an empty list if nothing has been saved yet.
+     */
+    public static List<RunTestsResult> load(File dir) throws IOException {
+        File file = new File(dir, FILENAME);
+        if (!file.exists()) {
+            return new ArrayList<RunTestsResult>();
+        }
+        return RunTestsResultCodec.read(file);
+    }
+
+    public static void save(File dir, List<RunTestsResult> results) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+        RunTestsResultCodec.write(new File(dir, FILENAME), results);
+    }
+
+    /**
+     * Returns the names of the test classes that have a result in the given ones.
+     */
+    public static Set<String> getTestClasses(List<RunTestsResult> results) {
+        Set<String> testClasses = new HashSet<String>();
+        for (RunTestsResult result : results) {
+            for (RunTestSuccess success : result.getSuccesses()) {
+                testClasses.add(success.getName());
+            }
+            for (RunTestFailure failure : result.getFailures()) {
+                testClasses.add(failure.getName());
+            }
+        }
+        return testClasses;
+    }
+
+    /**
+     * Builds a single result out of the previous ones, that contains the outcomes of the given test classes
+     * and the coverage of the classes and triggers whose sources haven't changed.
+     * Coverage of changed sources is dropped since its line numbers may not match the sources any longer.
+     */
+    public static RunTestsResult carryForward(List<RunTestsResult> previous, Set<String> testClasses, Set<String> unchangedSources) {
+        Map<String, RunTestSuccess> successes = new LinkedHashMap<String, RunTestSuccess>();
+        Map<String, RunTestFailure> failures = new LinkedHashMap<String, RunTestFailure>();
+        Map<String, List<CodeCoverageResult>> coverages = new LinkedHashMap<String, List<CodeCoverageResult>>();
+        Map<String, CodeCoverageWarning> warnings = new LinkedHashMap<String, CodeCoverageWarning>();
+
+        // later results win when the same method appears more than once
+        for (RunTestsResult result : previous) {
+            for (RunTestSuccess success : result.getSuccesses()) {
+                if (testClasses.contains(success.getName())) {
+                    String key = success.getName() + "." + success.getMethodName();
+                    failures.remove(key);
+                    successes.put(key, success);
+                }
+            }
+            for (RunTestFailure failure : result.getFailures()) {
+                if (testClasses.contains(failure.getName())) {
+                    String key = failure.getName() + "." + failure.getMethodName();
+                    successes.remove(key);
+                    failures.put(key, failure);
+                }
+            }
+            for (CodeCoverageResult coverage : result.getCodeCoverage()) {
+                String key = sourceKey(coverage);
+                if (unchangedSources.contains(key)) {
+                    List<CodeCoverageResult> list = coverages.get(key);
+                    if (list == null) {
+                        list = new ArrayList<CodeCoverageResult>();
+                        coverages.put(key, list);
+                    }
+                    list.add(coverage);
+                }
+            }
+            for (CodeCoverageWarning warning : result.getCodeCoverageWarnings()) {
+                if (warning.getName() == null) {
+                    continue;
+                }
+                String name = programName(warning.getNamespace(), warning.getName());
+                if (unchangedSources.contains(TestImpactIndex.classKey(name)) || unchangedSources.contains(TestImpactIndex.triggerKey(name))) {
+                    warnings.put(name, warning);
+                }
+            }
+        }
+
+        double totalTime = 0;
+        for (RunTestSuccess success : successes.values()) {
+            totalTime += success.getTime();
+        }
+        for (RunTestFailure failure : failures.values()) {
+            totalTime += failure.getTime();
+        }
+
+        List<CodeCoverageResult> mergedCoverages = new ArrayList<CodeCoverageResult>();
+        for (List<CodeCoverageResult> list : coverages.values()) {
+            mergedCoverages.add(mergeCoverage(list));
+        }
+
+        RunTestsResult carried = new RunTestsResult();
+        carried.setSuccesses(successes.values().toArray(new RunTestSuccess[0]));
+        carried.setFailures(failures.values().toArray(new RunTestFailure[0]));
+        carried.setNumTestsRun(successes.size() + failures.size());
+        carried.setNumFailures(failures.size());
+        carried.setTotalTime(totalTime);
+        carried.setCodeCoverage(mergedCoverages.toArray(new CodeCoverageResult[0]));
+        carried.setCodeCoverageWarnings(warnings.values().toArray(new CodeCoverageWarning[0]));
+        return carried;
+    }
+
+    /**
+     * Merges coverage results of the same class the same way as ClassCoverageResult does:
+     * a location is not covered only when none of the results covered it.
+     */
+    private static CodeCoverageResult mergeCoverage(List<CodeCoverageResult> list) {
+        CodeCoverageResult first = list.get(0);
+        if (list.size() == 1) {
+            return first;
+        }
+
+        Set<Integer> linesNotCovered = new HashSet<Integer>();
+        for (CodeLocation loc : first.getLocationsNotCovered()) {
+            linesNotCovered.add(loc.getLine());
+        }
+        for (CodeCoverageResult coverage : list.subList(1, list.size())) {
+            Set<Integer> lines = new HashSet<Integer>();
+            for (CodeLocation loc : coverage.getLocationsNotCovered()) {
+                lines.add(loc.getLine());
+            }
+            linesNotCovered.retainAll(lines);
+        }
+
+        List<CodeLocation> locationsNotCovered = new ArrayList<CodeLocation>();
+        for (CodeLocation loc : first.getLocationsNotCovered()) {
+            if (linesNotCovered.contains(loc.getLine())) {
+                locationsNotCovered.add(loc);
+            }
+        }
+
+        CodeCoverageResult merged = new CodeCoverageResult();
+        merged.setId(first.getId());
+        merged.setNamespace(first.getNamespace());
+        merged.setName(first.getName());
+        merged.setType(first.getType());
+        merged.setNumLocations(first.getNumLocations());
+        merged.setNumLocationsNotCovered(locationsNotCovered.size());
+        merged.setLocationsNotCovered(locationsNotCovered.toArray(new CodeLocation[0]));
+
+        // execution counts and times of different runs add up
+        Map<Integer, CodeLocation> dmlInfo = new TreeMap<Integer, CodeLocation>();
+        Map<Integer, CodeLocation> methodInfo = new TreeMap<Integer, CodeLocation>();
+        Map<Integer, CodeLocation> soqlInfo = new TreeMap<Integer, CodeLocation>();
+        Map<Integer, CodeLocation> soslInfo = new TreeMap<Integer, CodeLocation>();
+        for (CodeCoverageResult coverage : list) {
+            sumByLine(dmlInfo, coverage.getDmlInfo());
+            sumByLine(methodInfo, coverage.getMethodInfo());
+            sumByLine(soqlInfo, coverage.getSoqlInfo());
+            sumByLine(soslInfo, coverage.getSoslInfo());
+        }
+        merged.setDmlInfo(dmlInfo.values().toArray(new CodeLocation[0]));
+        merged.setMethodInfo(methodInfo.values().toArray(new CodeLocation[0]));
+        merged.setSoqlInfo(soqlInfo.values().toArray(new CodeLocation[0]));
+        merged.setSoslInfo(soslInfo.values().toArray(new CodeLocation[0]));
+        return merged;
+    }
+
+    private static void sumByLine(Map<Integer, CodeLocation> sums, CodeLocation[] locations) {
+        if (locations == null) {
+            return;
+        }
+        for (CodeLocation loc : locations) {
+            CodeLocation sum = sums.get(loc.getLine());
+            if (sum == null) {
+                sum = new CodeLocation();
+                sum.setLine(loc.getLine());
+                sum.setColumn(loc.getColumn());
+                sums.put(loc.getLine(), sum);
+            }
+            sum.setNumExecutions(sum.getNumExecutions() + loc.getNumExecutions());
+            sum.setTime(sum.getTime() + loc.getTime());
+        }
+    }
+
+    private static String sourceKey(CodeCoverageResult coverage) {
+        String name = programName(coverage.getNamespace(), coverage.getName());
+        if ("Trigger".equals(coverage.getType())) {
+            return TestImpactIndex.triggerKey(name);
+        } else {
+            return TestImpactIndex.classKey(name);
+        }
+    }
+
+    private static String programName(String namespace, String name) {
+        if (namespace == null || namespace.equals("")) {
+            return name;
+        } else {
+            return namespace + "__" + name;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses log files with gzip on a background thread, so that splitting debug logs doesn't wait for it.
+ *
+ * A submitted file is renamed right away, so that a later run can append to a new file of the same name,
+ * and is then compressed into the file with ".gz" added to its name. When that already exists,
+ * its content comes first, so that the result is a single gzip member that any gzip reader can decompress.
+ * Files are compressed one at a time in the order they were submitted.
+ */
+public class LogCompressor {
+    public static final String SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService executor;
+    private final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    private final List<File> files = new ArrayList<File>();
+    private final AtomicInteger numFiles = new AtomicInteger();
+    private final AtomicLong numBytes = new AtomicLong();
+    private int numParts = 0;
+
+    public LogCompressor() {
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                // don't keep the JVM running when the task fails before finish() is called
+                Thread thread = new Thread(r, "apextestplus-log-compressor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the file the given file is compressed into.
+     */
+    public static File getCompressedFile(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Schedules the file to be compressed. The file must not be open for writing.
+     */
+    public synchronized void submit(final File file) throws IOException {
+        final File part = new File(file.getPath() + "." + (numParts++) + ".part");
+        if (!file.renameTo(part)) {
+            throw new IOException("Failed to rename file: " + file.getAbsolutePath());
+        }
+
+        files.add(file);
+        futures.add(executor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                compress(part, getCompressedFile(file));
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Waits until all the files submitted are compressed, and stops the background thread.
+     * Failures of all the files are reported together.
+     */
+    public synchronized void finish() throws IOException {
+        executor.shutdown();
+
+        List<String> errors = new ArrayList<String>();
+        Throwable cause = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                errors.add(files.get(i).getAbsolutePath() + ": " + e.getCause().getMessage());
+                if (cause == null) {
+                    cause = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing log files");
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Failed to compress " + errors.size() + " log file(s):");
+            for (String error : errors) {
+                sb.append("\n  " + error);
+            }
+            IOException e = new IOException(sb.toString());
+            e.initCause(cause);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of compressed files written so far.
+     */
+    public int getNumFiles() {
+        return numFiles.get();
+    }
+
+    /**
+     * Returns the number of compressed bytes written so far.
+     */
+    public long getNumBytes() {
+        return numBytes.get();
+    }
+
+    private void compress(File part, File compressed) throws IOException {
+        File tmp = new File(compressed.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), BUFFER_SIZE);
+            if (compressed.exists()) {
+                copy(new GZIPInputStream(new FileInputStream(compressed), BUFFER_SIZE), out);
+            }
+            copy(new FileInputStream(part), out);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        if (compressed.exists() && !compressed.delete()) {
+            throw new IOException("Failed to delete file: " + compressed.getAbsolutePath());
+        }
+        if (!tmp.renameTo(compressed)) {
+            throw new IOException("Failed to rename file: " + tmp.getAbsolutePath());
+        }
+        if (!part.delete()) {
+            throw new IOException("Failed to delete file: " + part.getAbsolutePath());
+        }
+        numFiles.incrementAndGet();
+        numBytes.addAndGet(compressed.length());
+    }
+
+    private static void copy(InputStream stream, OutputStream out) throws IOException {
+        InputStream in = new BufferedInputStream(stream, BUFFER_SIZE);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
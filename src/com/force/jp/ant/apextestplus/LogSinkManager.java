@@ -0,0 +1,338 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps buffered writers of log files open while a debug log is being split,
+ * so that a file is not reopened every time a block is appended to it.
+ * The number of open files is capped; the least recently used one is closed when the cap is exceeded
+ * and reopened in append mode when it is needed again.
+ *
+ * Optionally, the writes can be handed to a writer thread through a bounded queue, so that parsing
+ * the debug log and writing the files overlap. The parsing thread waits when the queue is full.
+ * The characters buffered for the writer thread are bounded the same way: only the buffers of the
+ * least recently used files up to the cap are kept, and all of them are handed over once they add up
+ * to MAX_BUFFERED_CHARS. The writer thread stops at the first failure, and the parsing thread then gets the failure
+ * the next time it hands over a chunk instead of waiting for room in the queue.
+ */
+public class LogSinkManager {
+    public static final int DEFAULT_MAX_OPEN_FILES = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int MAX_BUFFERED_CHARS = 1024 * 1024;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final Chunk END = new Chunk(null, null);
+
+    private final int maxOpenFiles;
+    private final Set<File> preparedDirs = new HashSet<File>();
+    private final Set<File> openedFiles = new HashSet<File>();
+    private final Map<File, Writer> writers;
+    private IOException closeError = null;
+    private LogCompressor compressor = null;
+    private BlockingQueue<Chunk> queue = null;
+    private Thread writerThread = null;
+    private volatile IOException writeError = null;
+    // access-ordered like writers, so that the buffer of the least recently used file is handed over first
+    private final Map<File, QueuedWriter> queuedWriters = new LinkedHashMap<File, QueuedWriter>(16, 0.75f, true);
+    private int bufferedChars = 0;
+
+    public LogSinkManager() {
+        this(DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public LogSinkManager(int maxOpenFiles) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("maxOpenFiles must be positive: " + maxOpenFiles);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+
+        // access-ordered, so that the eldest entry is the least recently used writer
+        this.writers = new LinkedHashMap<File, Writer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, Writer> eldest) {
+                if (size() > LogSinkManager.this.maxOpenFiles) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Compresses the files written through this manager with the compressor once they are closed.
+     */
+    public void setCompressor(LogCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Returns the file the content written to the given file ends up in, which is different when it's compressed.
+     */
+    public File getStoredFile(File file) {
+        return compressor != null ? LogCompressor.getCompressedFile(file) : file;
+    }
+
+    /**
+     * Starts the writer thread, that the writes are handed to in chunks through a queue of the given capacity.
+     * Must be called before any writer is obtained, and the writers must then be used by a single thread.
+     */
+    public void startWriterThread(int queueCapacity) {
+        queue = new ArrayBlockingQueue<Chunk>(queueCapacity);
+        writerThread = new Thread("apextestplus-log-writer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Chunk chunk = queue.take();
+                        if (chunk == END) {
+                            return;
+                        }
+                        openWriter(chunk.file).write(chunk.text);
+                    }
+                } catch (IOException e) {
+                    writeError = e;
+                } catch (InterruptedException e) {
+                    writeError = new IOException("Interrupted while writing log files");
+                } catch (Throwable t) {
+                    // recorded as well, since the parsing thread would otherwise wait for the queue forever
+                    IOException e = new IOException("Failed to write log files: " + t);
+                    e.initCause(t);
+                    writeError = e;
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Returns the writer of the file, opening it in append mode if necessary.
+     * The writer must not be closed by the caller.
+     */
+    public Writer getWriter(File file) throws IOException {
+        if (queue != null) {
+            checkWriteError();
+            QueuedWriter writer = queuedWriters.get(file);
+            if (writer == null) {
+                writer = new QueuedWriter(file);
+                queuedWriters.put(file, writer);
+                if (queuedWriters.size() > maxOpenFiles) {
+                    // chunks of the same file stay in order, so a new buffer can be started if it's needed again
+                    Iterator<QueuedWriter> eldest = queuedWriters.values().iterator();
+                    QueuedWriter evicted = eldest.next();
+                    eldest.remove();
+                    evicted.flush();
+                }
+            }
+            return writer;
+        }
+        return openWriter(file);
+    }
+
+    private Writer openWriter(File file) throws IOException {
+        checkCloseError();
+
+        Writer writer = writers.get(file);
+        if (writer == null) {
+            File dir = file.getParentFile();
+            if (dir != null && !preparedDirs.contains(dir)) {
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+                }
+                preparedDirs.add(dir);
+            }
+
+            writer = new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE), "UTF-8"));
+            writers.put(file, writer);
+            openedFiles.add(file);
+        }
+        return writer;
+    }
+
+    /**
+     * Returns the number of different files written through this manager.
+     */
+    public int getNumFiles() {
+        return openedFiles.size();
+    }
+
+    /**
+     * Flushes and closes all the writers that are still open.
+     * With a compressor, all the files written are then handed to it.
+     */
+    public void close() throws IOException {
+        if (queue != null) {
+            stopWriterThread();
+        }
+
+        List<Writer> openWriters = new ArrayList<Writer>(writers.values());
+        writers.clear();
+
+        for (Writer writer : openWriters) {
+            closeQuietly(writer);
+        }
+        checkCloseError();
+
+        if (compressor != null) {
+            for (File file : openedFiles) {
+                compressor.submit(file);
+            }
+        }
+    }
+
+    /**
+     * Hands the rest of the writes to the writer thread and waits until it has written everything.
+     */
+    private void stopWriterThread() throws IOException {
+        try {
+            for (QueuedWriter writer : queuedWriters.values()) {
+                writer.flush();
+            }
+        } finally {
+            try {
+                if (offer(END)) {
+                    writerThread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing log files");
+            }
+            queue = null;
+        }
+        checkWriteError();
+    }
+
+    /**
+     * Hands the chunk to the writer thread, waiting while the queue is full.
+     * Returns false once the writer thread has failed, since it no longer takes chunks.
+     */
+    private boolean offer(Chunk chunk) throws InterruptedException {
+        while (writeError == null) {
+            if (queue.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkWriteError() throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void closeQuietly(Writer writer) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            if (closeError == null) {
+                closeError = e;
+            }
+        }
+    }
+
+    private void checkCloseError() throws IOException {
+        if (closeError != null) {
+            IOException e = closeError;
+            closeError = null;
+            throw e;
+        }
+    }
+
+    private static class Chunk {
+        private final File file;
+        private final String text;
+
+        Chunk(File file, String text) {
+            this.file = file;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Buffers the characters written to a file and puts them in the queue in chunks.
+     */
+    private class QueuedWriter extends Writer {
+        private final File file;
+        private final StringBuilder buf = new StringBuilder();
+
+        QueuedWriter(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            buf.append((char) c);
+            bufferAdded(1);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            buf.append(str, off, off + len);
+            bufferAdded(len);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            buf.append(cbuf, off, len);
+            bufferAdded(len);
+        }
+
+        private void bufferAdded(int len) throws IOException {
+            bufferedChars += len;
+            if (buf.length() >= CHUNK_SIZE) {
+                flush();
+            } else if (bufferedChars > MAX_BUFFERED_CHARS) {
+                for (QueuedWriter writer : queuedWriters.values()) {
+                    writer.flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buf.length() == 0) {
+                return;
+            }
+            checkWriteError();
+            try {
+                if (!offer(new Chunk(file, buf.toString()))) {
+                    checkWriteError();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing log files");
+            }
+            bufferedChars -= buf.length();
+            buf.setLength(0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // owned by the manager
+            flush();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Compares the results of the same tests run against several orgs, test method by test method
+ * and class by class. The report of each org is expected in the subdirectory named after the org.
+ */
+public class OrgComparison {
+    public static final String REPORT_FILENAME = "index.html";
+
+    private static final String PASSED = "SUCCESS";
+    private static final String FAILED = "FAILURE";
+
+    private Map<String, TestResult> results = new LinkedHashMap<String, TestResult>();
+
+    public void add(String orgName, TestResult tr) {
+        results.put(orgName, tr);
+    }
+
+    /**
+     * Returns the result of each test method by org, keyed by "class.method".
+     * Orgs where the method didn't run have no entry.
+     */
+    public Map<String, Map<String, MethodResult>> getMethodResults() {
+        Map<String, Map<String, MethodResult>> methods = new TreeMap<String, Map<String, MethodResult>>();
+        for (Map.Entry<String, TestResult> org : results.entrySet()) {
+            for (TestClassResult tcr : org.getValue().getTestClassResults()) {
+                Set<String> failed = tcr.getFailedMethods();
+                for (Map.Entry<String, Double> time : tcr.getMethodTimes().entrySet()) {
+                    String method = tcr.getClassName() + "." + time.getKey();
+                    Map<String, MethodResult> byOrg = methods.get(method);
+                    if (byOrg == null) {
+                        byOrg = new LinkedHashMap<String, MethodResult>();
+                        methods.put(method, byOrg);
+                    }
+                    byOrg.put(org.getKey(), new MethodResult(failed.contains(time.getKey()) ? FAILED : PASSED, time.getValue()));
+                }
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Returns the coverage of each class and trigger by org, keyed by "Class:name" and "Trigger:name".
+     * Orgs without coverage of it have no entry.
+     */
+    public Map<String, Map<String, BigDecimal>> getCoverages() {
+        Map<String, Map<String, BigDecimal>> coverages = new TreeMap<String, Map<String, BigDecimal>>();
+        for (Map.Entry<String, TestResult> org : results.entrySet()) {
+            addCoverages(coverages, org.getKey(), "Class:", org.getValue().getClassCoverageResults());
+            addCoverages(coverages, org.getKey(), "Trigger:", org.getValue().getTriggerCoverageResults());
+        }
+        return coverages;
+    }
+
+    private void addCoverages(Map<String, Map<String, BigDecimal>> coverages, String orgName, String prefix, Iterable<ClassCoverageResult> ccrs) {
+        for (ClassCoverageResult ccr : ccrs) {
+            if (ccr.getPctCoverage() == null) {
+                continue;
+            }
+            Map<String, BigDecimal> byOrg = coverages.get(prefix + ccr.getClassName());
+            if (byOrg == null) {
+                byOrg = new LinkedHashMap<String, BigDecimal>();
+                coverages.put(prefix + ccr.getClassName(), byOrg);
+            }
+            byOrg.put(orgName, ccr.getPctCoverage());
+        }
+    }
+
+    /**
+     * Returns the methods that passed in some orgs and failed or didn't run in others.
+     */
+    public Set<String> getMethodDifferences() {
+        Set<String> differences = new TreeSet<String>();
+        for (Map.Entry<String, Map<String, MethodResult>> method : getMethodResults().entrySet()) {
+            if (differs(method.getValue())) {
+                differences.add(method.getKey());
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * Returns the classes and triggers whose coverage is not the same in all the orgs.
+     */
+    public Set<String> getCoverageDifferences() {
+        Set<String> differences = new TreeSet<String>();
+        for (Map.Entry<String, Map<String, BigDecimal>> coverage : getCoverages().entrySet()) {
+            if (differsInCoverage(coverage.getValue())) {
+                differences.add(coverage.getKey());
+            }
+        }
+        return differences;
+    }
+
+    private boolean differs(Map<String, MethodResult> byOrg) {
+        if (byOrg.size() < results.size()) {
+            return true;
+        }
+        String status = null;
+        for (MethodResult result : byOrg.values()) {
+            if (status != null && !status.equals(result.status)) {
+                return true;
+            }
+            status = result.status;
+        }
+        return false;
+    }
+
+    private boolean differsInCoverage(Map<String, BigDecimal> byOrg) {
+        if (byOrg.size() < results.size()) {
+            return true;
+        }
+        BigDecimal pct = null;
+        for (BigDecimal value : byOrg.values()) {
+            if (pct != null && pct.compareTo(value) != 0) {
+                return true;
+            }
+            pct = value;
+        }
+        return false;
+    }
+
+    public void writeReport(File outDir) throws IOException {
+        Map<String, Map<String, MethodResult>> methods = getMethodResults();
+        Map<String, Map<String, BigDecimal>> coverages = getCoverages();
+
+        TestResult.copyStyleSheet(outDir);
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, REPORT_FILENAME)), "UTF-8"), 64 * 1024);
+            out.write("<html>\n");
+            out.write("<head>\n");
+            out.write("<title>Test Results by Org</title>\n");
+            out.write("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+            out.write("<link href=\"coverage.css\" rel=\"stylesheet\" type=\"text/css\" />\n");
+            out.write("</head>\n");
+            out.write("<body>\n");
+            out.write("<h1>Test Results by Org</h1>\n");
+
+            out.write("<h2>Summary</h2>\n");
+            writeTableHeader(out, "Org", "Tests Run", "Tests Failures", "Total Time", "Code Coverage Total");
+            for (Map.Entry<String, TestResult> org : results.entrySet()) {
+                TestResult tr = org.getValue();
+                String name = StringEscapeUtils.escapeHtml(org.getKey());
+                out.write("    <tr class=\"dataRow\">\n");
+                writeCell(out, "", "<a href=\"" + name + "/index.html\">" + name + "</a>");
+                writeCell(out, "", String.valueOf(tr.getNumTestsRun()));
+                writeCell(out, tr.getNumTestsFailures() == 0 ? "success" : "failure", String.valueOf(tr.getNumTestsFailures()));
+                writeCell(out, "", (tr.getTotalTime() / 1000) + " sec");
+                writeCell(out, "", tr.getTotalPctCoverage() + "%");
+                out.write("    </tr>\n");
+            }
+            writeTableFooter(out);
+
+            List<String> orgNames = new ArrayList<String>(results.keySet());
+            Set<String> methodDifferences = getMethodDifferences();
+            out.write("<h2>Test Results</h2>\n");
+            out.write("<p>" + methodDifferences.size() + " of " + methods.size() + " test method(s) differ in results between the orgs, which are listed first.</p>\n");
+            String[] columns = new String[orgNames.size() + 2];
+            columns[0] = "Test Method";
+            for (int i = 0; i < orgNames.size(); i++) {
+                columns[i + 1] = StringEscapeUtils.escapeHtml(orgNames.get(i));
+            }
+            columns[columns.length - 1] = "Time Spread";
+            writeTableHeader(out, columns);
+            for (String method : methodDifferences) {
+                writeMethodRow(out, method, methods.get(method), orgNames, true);
+            }
+            for (Map.Entry<String, Map<String, MethodResult>> method : methods.entrySet()) {
+                if (!methodDifferences.contains(method.getKey())) {
+                    writeMethodRow(out, method.getKey(), method.getValue(), orgNames, false);
+                }
+            }
+            writeTableFooter(out);
+
+            Set<String> coverageDifferences = getCoverageDifferences();
+            out.write("<h2>Code Coverage</h2>\n");
+            out.write("<p>" + coverageDifferences.size() + " of " + coverages.size() + " class(es) and trigger(s) differ in coverage between the orgs, which are listed first.</p>\n");
+            columns[0] = "Name";
+            columns[columns.length - 1] = "Type";
+            writeTableHeader(out, columns);
+            for (String name : coverageDifferences) {
+                writeCoverageRow(out, name, coverages.get(name), orgNames, true);
+            }
+            for (Map.Entry<String, Map<String, BigDecimal>> coverage : coverages.entrySet()) {
+                if (!coverageDifferences.contains(coverage.getKey())) {
+                    writeCoverageRow(out, coverage.getKey(), coverage.getValue(), orgNames, false);
+                }
+            }
+            writeTableFooter(out);
+
+            out.write("</body>\n");
+            out.write("</html>\n");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private void writeMethodRow(Writer out, String method, Map<String, MethodResult> byOrg, List<String> orgNames, boolean differs) throws IOException {
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        out.write("    <tr class=\"dataRow" + (differs ? " flaky" : "") + "\">\n");
+        writeCell(out, "", StringEscapeUtils.escapeHtml(method));
+        for (String orgName : orgNames) {
+            MethodResult result = byOrg.get(orgName);
+            if (result == null) {
+                writeCell(out, "", "not run");
+                continue;
+            }
+            min = Math.min(min, result.time);
+            max = Math.max(max, result.time);
+            writeCell(out, result.status.equals(PASSED) ? "success" : "failure", result.status + " (" + (result.time / 1000) + " sec)");
+        }
+        writeCell(out, "", ((max - min) / 1000) + " sec");
+        out.write("    </tr>\n");
+    }
+
+    private void writeCoverageRow(Writer out, String key, Map<String, BigDecimal> byOrg, List<String> orgNames, boolean differs) throws IOException {
+        String[] typeAndName = key.split(":", 2);
+        out.write("    <tr class=\"dataRow" + (differs ? " flaky" : "") + "\">\n");
+        writeCell(out, "", StringEscapeUtils.escapeHtml(typeAndName[1]));
+        for (String orgName : orgNames) {
+            BigDecimal pct = byOrg.get(orgName);
+            writeCell(out, "", pct != null ? pct + "%" : "-");
+        }
+        writeCell(out, "", typeAndName[0]);
+        out.write("    </tr>\n");
+    }
+
+    private static void writeTableHeader(Writer out, String... columns) throws IOException {
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        for (String column : columns) {
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">" + column + "</th>\n");
+        }
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
+    }
+
+    private static void writeTableFooter(Writer out) throws IOException {
+        out.write("</tbody>\n");
+        out.write("</table>\n");
+    }
+
+    private static void writeCell(Writer out, String cssClass, String value) throws IOException {
+        out.write("        <td class=\"dataCell" + (cssClass.length() > 0 ? " " + cssClass : "") + "\" colspan=\"1\">" + value + "</td>\n");
+    }
+
+    /**
+     * The result of a test method in an org.
+     */
+    public static class MethodResult {
+        private String status;
+        private double time;
+
+        MethodResult(String status, double time) {
+            this.status = status;
+            this.time = time;
+        }
+
+        public boolean isPassed() {
+            return status.equals(PASSED);
+        }
+
+        /**
+         * Returns the time taken in milliseconds.
+         */
+        public double getTime() {
+            return time;
+        }
+    }
+}
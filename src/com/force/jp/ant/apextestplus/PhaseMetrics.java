@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Wall time, bytes processed, files written and peak heap usage of each phase of a task.
+ * A phase can be measured several times, e.g. once per runTests call, and its numbers are added up,
+ * except the peak heap usage, which is the largest of them. Phases may be nested or overlap.
+ *
+ * Peak heap usage is the sum of the peak usage of the heap memory pools while the phase was running.
+ * The peaks are reset whenever a phase starts, so nested or overlapping phases share the peaks seen
+ * while they were running together.
+ *
+ * A disabled instance measures nothing and leaves the memory pools alone, so that the task can mark
+ * its phases whether metrics are asked for or not.
+ */
+public class PhaseMetrics {
+    public static final String JSON_FILENAME = "metrics.json";
+    public static final String PROMETHEUS_FILENAME = "metrics.prom";
+
+    private static final String PROMETHEUS_PREFIX = "apextestplus_phase_";
+
+    private Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+    private List<Measurement> running = new ArrayList<Measurement>();
+    private List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+    private boolean enabled;
+    private long startTime = System.currentTimeMillis();
+    private long startNanos = System.nanoTime();
+
+    public PhaseMetrics() {
+        this(true);
+    }
+
+    public PhaseMetrics(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            return;
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                heapPools.add(pool);
+            }
+        }
+    }
+
+    /**
+     * Starts measuring the phase. end() must be called on the returned measurement when the phase finishes.
+     */
+    public synchronized Measurement start(String name) {
+        if (!enabled) {
+            return new Measurement(null);
+        }
+
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases.put(name, phase);
+        }
+
+        // the peaks so far belong to the phases already running
+        updatePeaks();
+        for (MemoryPoolMXBean pool : heapPools) {
+            pool.resetPeakUsage();
+        }
+
+        Measurement measurement = new Measurement(phase);
+        running.add(measurement);
+        return measurement;
+    }
+
+    private synchronized void end(Measurement measurement) {
+        if (measurement.phase == null) {
+            return;
+        }
+        updatePeaks();
+        running.remove(measurement);
+        Phase phase = measurement.phase;
+        phase.calls++;
+        phase.wallTime += System.nanoTime() - measurement.startNanos;
+        phase.bytes += measurement.bytes;
+        phase.files += measurement.files;
+        phase.peakHeap = Math.max(phase.peakHeap, measurement.peakHeap);
+    }
+
+    private void updatePeaks() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        for (Measurement measurement : running) {
+            measurement.peakHeap = Math.max(measurement.peakHeap, peak);
+        }
+    }
+
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<Phase>(phases.values());
+    }
+
+    /**
+     * Returns the wall time since this instance was created in nanoseconds.
+     */
+    public long getTotalWallTime() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public void printSummary(PrintStream out) {
+        out.println("Phase Metrics: " + formatSeconds(getTotalWallTime()) + " sec in total");
+        for (Phase phase : getPhases()) {
+            out.println("  " + phase.getName() + ": " + formatSeconds(phase.getWallTime()) + " sec"
+                    + (phase.getCalls() > 1 ? " in " + phase.getCalls() + " calls" : "")
+                    + ", " + phase.getBytes() + " bytes, " + phase.getFiles() + " files"
+                    + ", peak heap " + (phase.getPeakHeap() / (1024 * 1024)) + " MB");
+        }
+    }
+
+    /**
+     * Writes the metrics to metrics.json and, in the Prometheus text format, to metrics.prom in the directory.
+     */
+    public void write(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+        List<Phase> phases = getPhases();
+
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, JSON_FILENAME)), "UTF-8"));
+            out.write("{\n");
+            out.write("  \"startTime\": " + startTime + ",\n");
+            out.write("  \"totalWallTimeSeconds\": " + formatSeconds(getTotalWallTime()) + ",\n");
+            out.write("  \"phases\": [");
+            for (int i = 0; i < phases.size(); i++) {
+                Phase phase = phases.get(i);
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    {\"name\": \"" + phase.getName() + "\", \"calls\": " + phase.getCalls()
+                        + ", \"wallTimeSeconds\": " + formatSeconds(phase.getWallTime())
+                        + ", \"bytes\": " + phase.getBytes() + ", \"files\": " + phase.getFiles()
+                        + ", \"peakHeapBytes\": " + phase.getPeakHeap() + "}");
+            }
+            out.write("\n  ]\n");
+            out.write("}\n");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, PROMETHEUS_FILENAME)), "UTF-8"));
+            writePrometheusMetric(out, phases, "wall_seconds", "Wall time spent in each phase of the runTest task.");
+            writePrometheusMetric(out, phases, "calls", "Number of times each phase ran.");
+            writePrometheusMetric(out, phases, "bytes", "Bytes processed in each phase.");
+            writePrometheusMetric(out, phases, "files", "Files written in each phase.");
+            writePrometheusMetric(out, phases, "peak_heap_bytes", "Peak heap usage while each phase was running.");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static void writePrometheusMetric(Writer out, List<Phase> phases, String metric, String help) throws IOException {
+        String name = PROMETHEUS_PREFIX + metric;
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " gauge\n");
+        for (Phase phase : phases) {
+            String value = null;
+            if (metric.equals("wall_seconds")) {
+                value = formatSeconds(phase.getWallTime());
+            } else if (metric.equals("calls")) {
+                value = String.valueOf(phase.getCalls());
+            } else if (metric.equals("bytes")) {
+                value = String.valueOf(phase.getBytes());
+            } else if (metric.equals("files")) {
+                value = String.valueOf(phase.getFiles());
+            } else {
+                value = String.valueOf(phase.getPeakHeap());
+            }
+            out.write(name + "{phase=\"" + phase.getName() + "\"} " + value + "\n");
+        }
+    }
+
+    private static String formatSeconds(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e9);
+    }
+
+    /**
+     * The numbers of a phase added up over its measurements.
+     */
+    public static class Phase {
+        private String name;
+        private int calls;
+        private long wallTime;
+        private long bytes;
+        private long files;
+        private long peakHeap;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCalls() {
+            return calls;
+        }
+
+        /**
+         * Returns the wall time in nanoseconds.
+         */
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getPeakHeap() {
+            return peakHeap;
+        }
+    }
+
+    /**
+     * A single run of a phase.
+     */
+    public class Measurement {
+        private Phase phase;
+        private long startNanos = System.nanoTime();
+        private long bytes;
+        private long files;
+        private long peakHeap;
+
+        Measurement(Phase phase) {
+            this.phase = phase;
+        }
+
+        public void addBytes(long bytes) {
+            this.bytes += bytes;
+        }
+
+        public void addFiles(long files) {
+            this.files += files;
+        }
+
+        public void end() {
+            PhaseMetrics.this.end(this);
+        }
+    }
+}
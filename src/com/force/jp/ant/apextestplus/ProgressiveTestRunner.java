@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sforce.soap.apex.RunTestsRequest;
+
+/**
+ * Runs requests concurrently and hands each run to a listener as soon as it finishes,
+ * in the order they finish rather than the order they were submitted.
+ * Optionally stops once a given number of test methods have failed: requests that haven't started are cancelled,
+ * and runs still in progress are abandoned.
+ */
+public class ProgressiveTestRunner {
+    private ApexTestExecutor executor;
+    private int concurrency;
+    private int failFast = 0;
+    private boolean stopped = false;
+
+    public interface Listener {
+        /**
+         * Called on the thread that called run() each time a run finishes.
+         * numFinished counts the runs finished so far including this one.
+         */
+        void runFinished(TestRun run, int numFinished, int numRequests) throws Exception;
+    }
+
+    public ProgressiveTestRunner(ApexTestExecutor executor, int concurrency) {
+        this.executor = executor;
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    public int getFailFast() {
+        return failFast;
+    }
+
+    /**
+     * Sets the number of failed test methods to stop at. 0 means running all the requests.
+     */
+    public void setFailFast(int failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Returns true if the last call of run() stopped before all the requests finished.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Runs the requests and returns the runs that finished, in the order they finished.
+     */
+    public List<TestRun> run(List<RunTestsRequest> requests, Listener listener) throws Exception {
+        List<TestRun> runs = new ArrayList<TestRun>();
+        stopped = false;
+        if (requests.isEmpty()) {
+            return runs;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, requests.size()));
+        try {
+            CompletionService<TestRun> completion = new ExecutorCompletionService<TestRun>(pool);
+            for (final RunTestsRequest request : requests) {
+                completion.submit(new Callable<TestRun>() {
+                    public TestRun call() throws Exception {
+                        return executor.run(request);
+                    }
+                });
+            }
+
+            int numFailures = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                Future<TestRun> future = completion.take();
+                TestRun run = null;
+                try {
+                    run = future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+
+                // the listener may release the result of the run
+                numFailures += run.getResult().getNumFailures();
+                runs.add(run);
+                listener.runFinished(run, runs.size(), requests.size());
+
+                if (failFast > 0 && numFailures >= failFast && runs.size() < requests.size()) {
+                    stopped = true;
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return runs;
+    }
+}
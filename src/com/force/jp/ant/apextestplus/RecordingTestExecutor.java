@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Properties;
+
+import com.sforce.soap.apex.RunTestsRequest;
+
+/**
+ * Runs Apex tests with another executor and records each run to a directory,
+ * so that the runs can be replayed later by ReplayTestExecutor without connecting to the server.
+ *
+ * Each run is saved as three files: run-NNNN.properties with the request,
+ * run-NNNN.dat with the result and run-NNNN.log with the debug log if there is one.
+ */
+public class RecordingTestExecutor implements ApexTestExecutor {
+    static final String RUN_PREFIX = "run-";
+    static final String REQUEST_SUFFIX = ".properties";
+    static final String RESULT_SUFFIX = ".dat";
+    static final String LOG_SUFFIX = ".log";
+
+    static final String ALL_TESTS_KEY = "allTests";
+    static final String CLASSES_KEY = "classes";
+    static final String NAMESPACE_KEY = "namespace";
+
+    private ApexTestExecutor executor;
+    private File dir;
+    private int numRuns = 0;
+
+    /**
+     * Creates an executor that records to the directory. Runs recorded there before are deleted.
+     */
+    public RecordingTestExecutor(ApexTestExecutor executor, File dir) throws IOException {
+        this.executor = executor;
+        this.dir = dir;
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+        for (File file : listRunFiles(dir)) {
+            if (!file.delete()) {
+                throw new IOException("Failed to delete file: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Returns the executor whose runs are recorded.
+     */
+    public ApexTestExecutor getExecutor() {
+        return executor;
+    }
+
+    public TestRun run(RunTestsRequest request) throws Exception {
+        TestRun run = executor.run(request);
+        record(request, run);
+        return run;
+    }
+
+    private synchronized void record(RunTestsRequest request, TestRun run) throws IOException {
+        numRuns++;
+        String baseName = RUN_PREFIX + String.format("%04d", numRuns);
+
+        Properties props = new Properties();
+        props.setProperty(ALL_TESTS_KEY, String.valueOf(request.getAllTests()));
+        StringBuilder sb = new StringBuilder();
+        if (request.getClasses() != null) {
+            for (String clazz : request.getClasses()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(clazz);
+            }
+        }
+        props.setProperty(CLASSES_KEY, sb.toString());
+        if (request.getNamespace() != null) {
+            props.setProperty(NAMESPACE_KEY, request.getNamespace());
+        }
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(new File(dir, baseName + REQUEST_SUFFIX)));
+            props.store(out, "Recorded runTests request");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        RunTestsResultCodec.write(new File(dir, baseName + RESULT_SUFFIX), Collections.singletonList(run.getResult()));
+
+        if (run.getDebugLog() != null) {
+            Writer log = null;
+            try {
+                log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, baseName + LOG_SUFFIX)), "UTF-8"));
+                log.write(run.getDebugLog());
+            } finally {
+                if (log != null) {
+                    log.close();
+                }
+            }
+        }
+    }
+
+    static File[] listRunFiles(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.matches(RUN_PREFIX + "\\d+(" + REQUEST_SUFFIX + "|" + RESULT_SUFFIX + "|" + LOG_SUFFIX + ")");
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.CodeCoverageWarning;
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
+import com.sforce.soap.apex.RunTestsRequest;
+import com.sforce.soap.apex.RunTestsResult;
+
+/**
+ * Plays back runs recorded by RecordingTestExecutor instead of calling the server.
+ *
+ * A request for the same test classes as a recorded run gets that run as it was recorded.
+ * Any other request gets the outcomes of the requested classes and the debug log blocks of their methods
+ * out of all the recorded runs. Since coverage can't be told apart by test class, it gets the coverage
+ * of every recorded run that ran any of the requested classes.
+ */
+public class ReplayTestExecutor implements ApexTestExecutor {
+    private static final Pattern CODE_UNIT_PATTERN = Pattern.compile("\\|CODE_UNIT_STARTED\\|.+\\|(.+)\\.(.+)$");
+
+    private List<RecordedRun> runs = new ArrayList<RecordedRun>();
+    private long latency;
+
+    /**
+     * Loads the runs recorded in the directory. Each run is delayed by latency milliseconds
+     * to simulate the time taken by the server.
+     */
+    public ReplayTestExecutor(File dir, long latency) throws IOException {
+        this.latency = latency;
+
+        Set<String> baseNames = new TreeSet<String>();
+        for (File file : RecordingTestExecutor.listRunFiles(dir)) {
+            if (file.getName().endsWith(RecordingTestExecutor.RESULT_SUFFIX)) {
+                baseNames.add(file.getName().substring(0, file.getName().length() - RecordingTestExecutor.RESULT_SUFFIX.length()));
+            }
+        }
+        if (baseNames.isEmpty()) {
+            throw new IOException("No recorded runs found: " + dir.getAbsolutePath());
+        }
+
+        for (String baseName : baseNames) {
+            runs.add(new RecordedRun(dir, baseName));
+        }
+    }
+
+    public int getNumRuns() {
+        return runs.size();
+    }
+
+    public TestRun run(RunTestsRequest request) throws Exception {
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+
+        Set<String> requested = null;
+        if (!request.getAllTests()) {
+            requested = new HashSet<String>(Arrays.asList(request.getClasses()));
+        }
+
+        for (RecordedRun run : runs) {
+            if (run.allTests ? requested == null : run.classes.equals(requested)) {
+                return new TestRun(request.getClasses(), run.result, run.readDebugLog());
+            }
+        }
+        return filter(request, requested);
+    }
+
+    private TestRun filter(RunTestsRequest request, Set<String> requested) throws IOException {
+        List<RunTestSuccess> successes = new ArrayList<RunTestSuccess>();
+        List<RunTestFailure> failures = new ArrayList<RunTestFailure>();
+        List<CodeCoverageResult> coverages = new ArrayList<CodeCoverageResult>();
+        Map<String, CodeCoverageWarning> warnings = new LinkedHashMap<String, CodeCoverageWarning>();
+        double totalTime = 0;
+        StringBuilder debugLog = null;
+
+        for (RecordedRun run : runs) {
+            boolean matched = false;
+            for (RunTestSuccess success : run.result.getSuccesses()) {
+                if (requested == null || requested.contains(success.getName())) {
+                    successes.add(success);
+                    totalTime += success.getTime();
+                    matched = true;
+                }
+            }
+            for (RunTestFailure failure : run.result.getFailures()) {
+                if (requested == null || requested.contains(failure.getName())) {
+                    failures.add(failure);
+                    totalTime += failure.getTime();
+                    matched = true;
+                }
+            }
+            if (!matched) {
+                continue;
+            }
+
+            coverages.addAll(Arrays.asList(run.result.getCodeCoverage()));
+            for (CodeCoverageWarning warning : run.result.getCodeCoverageWarnings()) {
+                // warnings of the same class, or for the whole organization, are reported once
+                warnings.put(warning.getNamespace() + "__" + warning.getName(), warning);
+            }
+
+            String log = run.readDebugLog();
+            if (log != null) {
+                if (debugLog == null) {
+                    debugLog = new StringBuilder();
+                }
+                filterDebugLog(log, requested, run.getTestClasses(), debugLog);
+            }
+        }
+
+        RunTestsResult result = new RunTestsResult();
+        result.setSuccesses(successes.toArray(new RunTestSuccess[0]));
+        result.setFailures(failures.toArray(new RunTestFailure[0]));
+        result.setNumTestsRun(successes.size() + failures.size());
+        result.setNumFailures(failures.size());
+        result.setTotalTime(totalTime);
+        result.setCodeCoverage(coverages.toArray(new CodeCoverageResult[0]));
+        result.setCodeCoverageWarnings(warnings.values().toArray(new CodeCoverageWarning[0]));
+        return new TestRun(request.getClasses(), result, debugLog != null ? debugLog.toString() : null);
+    }
+
+    /**
+     * Appends the execution blocks of the requested test classes in the log to out.
+     * Blocks that don't belong to any test method, such as those of asynchronous calls,
+     * go along with the block before them, the same way as DebugLogSplitter credits them.
+     */
+    private static void filterDebugLog(String log, Set<String> requested, Set<String> testClasses, StringBuilder out) throws IOException {
+        BufferedReader in = new BufferedReader(new StringReader(log));
+        List<String> pendingLines = new ArrayList<String>();
+        boolean keep = false;
+        boolean ownerKnown = true;
+        String line = null;
+
+        while ((line = in.readLine()) != null) {
+            if (line.endsWith("|EXECUTION_STARTED")) {
+                flush(pendingLines, keep, out);
+                ownerKnown = false;
+            }
+
+            if (!ownerKnown) {
+                Matcher m = CODE_UNIT_PATTERN.matcher(line);
+                if (m.find() && testClasses.contains(m.group(1))) {
+                    keep = requested == null || requested.contains(m.group(1));
+                    ownerKnown = true;
+                    flush(pendingLines, keep, out);
+                }
+            }
+
+            if (ownerKnown) {
+                if (keep) {
+                    out.append(line).append('\n');
+                }
+            } else {
+                pendingLines.add(line);
+            }
+        }
+        flush(pendingLines, keep, out);
+    }
+
+    private static void flush(List<String> pendingLines, boolean keep, StringBuilder out) {
+        if (keep) {
+            for (String pending : pendingLines) {
+                out.append(pending).append('\n');
+            }
+        }
+        pendingLines.clear();
+    }
+
+    private static class RecordedRun {
+        private boolean allTests;
+        private Set<String> classes = new HashSet<String>();
+        private RunTestsResult result;
+        private File logFile;
+
+        RecordedRun(File dir, String baseName) throws IOException {
+            Properties props = new Properties();
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(new File(dir, baseName + RecordingTestExecutor.REQUEST_SUFFIX)));
+                props.load(in);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+
+            allTests = Boolean.parseBoolean(props.getProperty(RecordingTestExecutor.ALL_TESTS_KEY));
+            for (String clazz : props.getProperty(RecordingTestExecutor.CLASSES_KEY, "").split(",")) {
+                if (clazz.length() > 0) {
+                    classes.add(clazz);
+                }
+            }
+
+            result = RunTestsResultCodec.read(new File(dir, baseName + RecordingTestExecutor.RESULT_SUFFIX)).get(0);
+
+            File file = new File(dir, baseName + RecordingTestExecutor.LOG_SUFFIX);
+            logFile = file.exists() ? file : null;
+        }
+
+        Set<String> getTestClasses() {
+            Set<String> testClasses = new HashSet<String>();
+            for (RunTestSuccess success : result.getSuccesses()) {
+                testClasses.add(success.getName());
+            }
+            for (RunTestFailure failure : result.getFailures()) {
+                testClasses.add(failure.getName());
+            }
+            return testClasses;
+        }
+
+        /**
+         * Reads the debug log from the file each time, so that recorded logs are not all kept in memory.
+         */
+        String readDebugLog() throws IOException {
+            if (logFile == null) {
+                return null;
+            }
+
+            StringBuilder sb = new StringBuilder((int) Math.min(logFile.length(), Integer.MAX_VALUE));
+            InputStreamReader in = null;
+            try {
+                in = new InputStreamReader(new BufferedInputStream(new FileInputStream(logFile)), "UTF-8");
+                char[] buf = new char[8192];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    sb.append(buf, 0, n);
+                }
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
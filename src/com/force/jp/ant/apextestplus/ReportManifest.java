@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of the inputs of the pages generated in an output directory, so that pages whose inputs
+ * have not changed since the last run don't need to be rendered again.
+ *
+ * The manifest is saved in the output directory itself as a properties file whose keys are the paths of
+ * the pages relative to the directory, and values are the hashes. Entries can be updated from several threads.
+ */
+public class ReportManifest {
+    public static final String FILENAME = "report-manifest.properties";
+
+    private File outDir;
+    private Map<String, String> previous = new ConcurrentHashMap<String, String>();
+    private Map<String, String> current = new ConcurrentHashMap<String, String>();
+
+    private ReportManifest(File outDir) {
+        this.outDir = outDir;
+    }
+
+    /**
+     * Loads the manifest saved in the output directory, or returns an empty one if there is none.
+     */
+    public static ReportManifest load(File outDir) throws IOException {
+        ReportManifest manifest = new ReportManifest(outDir);
+        File file = new File(outDir, FILENAME);
+        if (!file.exists()) {
+            return manifest;
+        }
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            props.load(in);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        for (String path : props.stringPropertyNames()) {
+            manifest.previous.put(path, props.getProperty(path));
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns true if the page exists and was generated from inputs of the same hash last time.
+     * The hash is recorded for the page either way, and is saved unless the page fails to be generated.
+     */
+    public boolean isUpToDate(String path, String hash) {
+        current.put(path, hash);
+        return hash.equals(previous.get(path)) && new File(outDir, path).exists();
+    }
+
+    /**
+     * Forgets the hash of a page that failed to be generated, so that it is generated again next time.
+     */
+    public void invalidate(String path) {
+        current.remove(path);
+    }
+
+    /**
+     * Deletes the pages generated last time whose inputs are gone this time, and saves the manifest.
+     * Returns the number of pages deleted.
+     */
+    public int save() throws IOException {
+        int deleted = 0;
+        for (String path : previous.keySet()) {
+            if (!current.containsKey(path) && new File(outDir, path).delete()) {
+                deleted++;
+            }
+        }
+
+        Properties props = new Properties();
+        props.putAll(current);
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(new File(outDir, FILENAME)));
+            props.store(out, "Hashes of the inputs of the generated pages");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes the manifest saved in the output directory, if any. Used when pages are rendered without it,
+     * since its hashes would no longer match the pages, and a later incremental run would trust them.
+     */
+    public static void delete(File outDir) throws IOException {
+        File file = new File(outDir, FILENAME);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete file: " + file.getAbsolutePath());
+        }
+    }
+
+    public static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the content of the file to the digest.
+     */
+    public static void update(MessageDigest md, File file) throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,405 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only store of the outcomes of past runs: the duration and status of each test method
+ * and the coverage counts of each class and trigger.
+ *
+ * Runs are kept in run-history.dat as length-prefixed binary records, one per run, and the names they refer to
+ * are kept in run-history.names, one per line, numbered from 0 in the order they were added.
+ * Records are only ever appended, so an interrupted write leaves at most an incomplete record at the end,
+ * which is ignored when loading and cut off before the next record is appended. The records file is memory-mapped when loaded, and only the records asked for are decoded.
+ */
+public class RunHistory {
+    public static final String RECORDS_FILENAME = "run-history.dat";
+    public static final String NAMES_FILENAME = "run-history.names";
+
+    private static final int MAGIC = 0x41545048; // "ATPH"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    public static final byte PASSED = 0;
+    public static final byte FAILED = 1;
+
+    public static final byte CLASS = 0;
+    public static final byte TRIGGER = 1;
+
+    private File dir;
+    private List<String> names = new ArrayList<String>();
+    private Map<String, Integer> nameIds = new HashMap<String, Integer>();
+    private List<Run> runs = new ArrayList<Run>();
+
+    private RunHistory(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Loads the last maxRuns runs saved in the directory, or all of them if maxRuns is negative.
+     * Returns an empty history if nothing has been saved yet.
+     */
+    public static RunHistory load(File dir, int maxRuns) throws IOException {
+        RunHistory history = new RunHistory(dir);
+        history.loadNames();
+
+        File file = new File(dir, RECORDS_FILENAME);
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return history;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("Unsupported file format: " + file.getAbsolutePath());
+            }
+
+            // find where each complete record starts by following the length prefixes
+            List<Integer> offsets = new ArrayList<Integer>();
+            while (buf.remaining() >= 4) {
+                int length = buf.getInt();
+                if (length < 0 || length > buf.remaining()) {
+                    break;
+                }
+                offsets.add(buf.position());
+                buf.position(buf.position() + length);
+            }
+
+            int first = maxRuns >= 0 ? Math.max(offsets.size() - maxRuns, 0) : 0;
+            for (int i = first; i < offsets.size(); i++) {
+                buf.position(offsets.get(i));
+                history.runs.add(readRun(buf));
+            }
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return history;
+    }
+
+    private void loadNames() throws IOException {
+        File file = new File(dir, NAMES_FILENAME);
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8"));
+            String line = null;
+            while ((line = in.readLine()) != null) {
+                nameIds.put(line, names.size());
+                names.add(line);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static Run readRun(ByteBuffer buf) {
+        Run run = new Run();
+        run.startTime = buf.getLong();
+        run.totalTime = buf.getDouble();
+
+        int numMethods = buf.getInt();
+        run.methodIds = new int[numMethods];
+        run.durations = new float[numMethods];
+        run.statuses = new byte[numMethods];
+        for (int i = 0; i < numMethods; i++) {
+            run.methodIds[i] = buf.getInt();
+            run.durations[i] = buf.getFloat();
+            run.statuses[i] = buf.get();
+        }
+
+        int numCoverages = buf.getInt();
+        run.coverageIds = new int[numCoverages];
+        run.coverageTypes = new byte[numCoverages];
+        run.numLocations = new int[numCoverages];
+        run.numLocationsNotCovered = new int[numCoverages];
+        for (int i = 0; i < numCoverages; i++) {
+            run.coverageIds[i] = buf.getInt();
+            run.coverageTypes[i] = buf.get();
+            run.numLocations[i] = buf.getInt();
+            run.numLocationsNotCovered[i] = buf.getInt();
+        }
+        return run;
+    }
+
+    /**
+     * Appends the outcome of the run to the store. Test classes carried forward from a previous run are left out.
+     */
+    public void append(TestResult tr) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+
+        List<String> newNames = new ArrayList<String>();
+        Run run = new Run();
+        run.startTime = tr.getStartTime().getTime();
+        run.totalTime = tr.getTotalTime();
+
+        List<Integer> methodIds = new ArrayList<Integer>();
+        List<Float> durations = new ArrayList<Float>();
+        List<Byte> statuses = new ArrayList<Byte>();
+        for (TestClassResult tcr : tr.getTestClassResults()) {
+            if (tcr.isCarriedForward()) {
+                continue;
+            }
+            Set<String> failed = tcr.getFailedMethods();
+            for (Map.Entry<String, Double> methodTime : tcr.getMethodTimes().entrySet()) {
+                methodIds.add(nameId(tcr.getClassName() + "." + methodTime.getKey(), newNames));
+                durations.add(methodTime.getValue().floatValue());
+                statuses.add(failed.contains(methodTime.getKey()) ? FAILED : PASSED);
+            }
+        }
+        run.methodIds = new int[methodIds.size()];
+        run.durations = new float[methodIds.size()];
+        run.statuses = new byte[methodIds.size()];
+        for (int i = 0; i < run.methodIds.length; i++) {
+            run.methodIds[i] = methodIds.get(i);
+            run.durations[i] = durations.get(i);
+            run.statuses[i] = statuses.get(i);
+        }
+
+        List<ClassCoverageResult> coverages = new ArrayList<ClassCoverageResult>();
+        coverages.addAll(tr.getClassCoverageResults());
+        coverages.addAll(tr.getTriggerCoverageResults());
+        int numClasses = tr.getClassCoverageResults().size();
+        run.coverageIds = new int[coverages.size()];
+        run.coverageTypes = new byte[coverages.size()];
+        run.numLocations = new int[coverages.size()];
+        run.numLocationsNotCovered = new int[coverages.size()];
+        for (int i = 0; i < coverages.size(); i++) {
+            ClassCoverageResult ccr = coverages.get(i);
+            run.coverageIds[i] = nameId(ccr.getClassName(), newNames);
+            run.coverageTypes[i] = i < numClasses ? CLASS : TRIGGER;
+            run.numLocations[i] = ccr.getNumLocations();
+            run.numLocationsNotCovered[i] = ccr.getNumLocationsNotCovered();
+        }
+
+        // names go first, so that a record never refers to a name that is not saved
+        if (!newNames.isEmpty()) {
+            Writer out = null;
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, NAMES_FILENAME), true), "UTF-8"));
+                for (String name : newNames) {
+                    out.write(name);
+                    out.write('\n');
+                }
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeLong(run.startTime);
+        record.writeDouble(run.totalTime);
+        record.writeInt(run.methodIds.length);
+        for (int i = 0; i < run.methodIds.length; i++) {
+            record.writeInt(run.methodIds[i]);
+            record.writeFloat(run.durations[i]);
+            record.writeByte(run.statuses[i]);
+        }
+        record.writeInt(run.coverageIds.length);
+        for (int i = 0; i < run.coverageIds.length; i++) {
+            record.writeInt(run.coverageIds[i]);
+            record.writeByte(run.coverageTypes[i]);
+            record.writeInt(run.numLocations[i]);
+            record.writeInt(run.numLocationsNotCovered[i]);
+        }
+        record.flush();
+
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(new File(dir, RECORDS_FILENAME), "rw");
+            long end = getEndOfRecords(out);
+
+            // an incomplete record left by an interrupted write would hide the records appended after it.
+            // the length is left alone otherwise, since the file may still be mapped by load(),
+            // and a mapped file can't be truncated on Windows
+            if (end < out.length()) {
+                out.setLength(end);
+            }
+            if (end < HEADER_SIZE) {
+                out.seek(0);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            } else {
+                out.seek(end);
+            }
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        runs.add(run);
+    }
+
+    /**
+     * Returns the offset where the last complete record ends, or 0 if the file has no header.
+     */
+    private static long getEndOfRecords(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (length < HEADER_SIZE) {
+            return 0;
+        }
+
+        long end = HEADER_SIZE;
+        while (end + 4 <= length) {
+            file.seek(end);
+            int recordLength = file.readInt();
+            if (recordLength < 0 || end + 4 + recordLength > length) {
+                break;
+            }
+            end += 4 + recordLength;
+        }
+        return end;
+    }
+
+    private int nameId(String name, List<String> newNames) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+            newNames.add(name);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the loaded runs, the oldest first.
+     */
+    public List<Run> getRuns() {
+        return runs;
+    }
+
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * The outcome of a run. Entries of methods and coverages are kept in parallel arrays indexed alike.
+     */
+    public static class Run {
+        private long startTime;
+        private double totalTime;
+        private int[] methodIds;
+        private float[] durations;
+        private byte[] statuses;
+        private int[] coverageIds;
+        private byte[] coverageTypes;
+        private int[] numLocations;
+        private int[] numLocationsNotCovered;
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public double getTotalTime() {
+            return totalTime;
+        }
+
+        public int getNumMethods() {
+            return methodIds.length;
+        }
+
+        public int getMethodId(int i) {
+            return methodIds[i];
+        }
+
+        /**
+         * Returns the duration of the i-th method in milliseconds.
+         */
+        public float getDuration(int i) {
+            return durations[i];
+        }
+
+        public byte getStatus(int i) {
+            return statuses[i];
+        }
+
+        public int getNumFailures() {
+            int failures = 0;
+            for (byte status : statuses) {
+                if (status == FAILED) {
+                    failures++;
+                }
+            }
+            return failures;
+        }
+
+        public int getNumCoverages() {
+            return coverageIds.length;
+        }
+
+        public int getCoverageId(int i) {
+            return coverageIds[i];
+        }
+
+        public byte getCoverageType(int i) {
+            return coverageTypes[i];
+        }
+
+        public int getNumLocations(int i) {
+            return numLocations[i];
+        }
+
+        public int getNumLocationsNotCovered(int i) {
+            return numLocationsNotCovered[i];
+        }
+
+        /**
+         * Returns the coverage of all the classes and triggers in percent, or -1 if there are no locations.
+         */
+        public double getTotalPctCoverage() {
+            long locations = 0;
+            long notCovered = 0;
+            for (int i = 0; i < coverageIds.length; i++) {
+                locations += numLocations[i];
+                notCovered += numLocationsNotCovered[i];
+            }
+            return locations > 0 ? 100.0 * (locations - notCovered) / locations : -1;
+        }
+    }
+}
@@ -3,39 +3,90 @@
  */
 package com.force.jp.ant.apextestplus;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.tools.ant.BuildException;
 
 import com.salesforce.ant.SFDCAntTask;
-import com.sforce.soap.apex.DebuggingHeader_element;
 import com.sforce.soap.apex.LogType;
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
 import com.sforce.soap.apex.RunTestsRequest;
 import com.sforce.soap.apex.RunTestsResult;
 import com.sforce.soap.apex.SoapConnection;
+import com.sforce.ws.ConnectionException;
 
 public class RunTestTask extends SFDCAntTask {
+    // debug log groups are run at least this many at a time, even with a single shard
+    private static final int MIN_LOG_GROUP_CALLS = 4;
+
     private boolean runAllTests = false;
     private List<ClassElement> testClasses = new ArrayList<ClassElement>();
+    private List<OrgElement> orgs = new ArrayList<OrgElement>();
     private String namespace;
     private File srcDir;
     private File outDir;
     private String logType;
     private int coverageTarget = 75;
+    private int maxOpenLogFiles = LogSinkManager.DEFAULT_MAX_OPEN_FILES;
+    private String logStorage = TestResult.LOG_STORAGE_FILES;
+    private boolean pipelined = false;
+    private int renderThreads = 1;
+    private boolean incremental = false;
+    private int shards = 1;
+    private File historyDir;
+    private boolean impactAnalysis = false;
+    private File recordTo;
+    private File replayFrom;
+    private long replayLatency = 0;
+    private boolean progressive = false;
+    private int failFast = 0;
+    private boolean profile = false;
+    private boolean limitUsage = false;
+    private int limitThreshold = 80;
+    private boolean runHistory = false;
+    private int trendRuns = 50;
+    private int retryFailures = 0;
+    private int quarantineThreshold = 20;
+    private boolean metrics = false;
+    private int logGroupSize = 0;
+
+    private PhaseMetrics phaseMetrics;
     
-    private Map<String, File> srcClassMap = new HashMap<String, File>();
-    private Map<String, File> srcTriggerMap = new HashMap<String, File>();
+    private List<File> srcDirs = new ArrayList<File>();
+    private SourceIndex sourceIndex;
 
     @Override
     public void execute() throws BuildException {
-        validateAttributes();
+        // the heap pools are only touched when metrics are asked for
+        phaseMetrics = new PhaseMetrics(metrics);
+
+        // no login is needed to replay recorded runs, and each org logs in by itself
+        if (replayFrom == null && orgs.isEmpty()) {
+            validateAttributes();
+        }
 
         System.out.println("Source Directory: " + getSrcDir());
         System.out.println("Output Directory: " + getOutDir());
@@ -50,34 +101,195 @@ public class RunTestTask extends SFDCAntTask {
             }
         }
 
-        RunTestsRequest runTests = new RunTestsRequest();
-        runTests.setAllTests(getRunAllTests());
-        runTests.setClasses(getClasses());
-        
-        if (getNamespace() != null) {
-            runTests.setNamespace(getNamespace());
-        }
-
         try {
-            SoapConnection sc = getApexConnection();
+            TestTimings timings = usesTimings() ? TestTimings.load(getHistoryDir()) : new TestTimings();
+            String[] classes = getClasses();
+            boolean allTests = getRunAllTests();
+
+            if (!orgs.isEmpty()) {
+                checkOrgOptions();
+                runOrgs(classes, allTests, timings);
+                return;
+            }
+
+            // select only the test classes affected by changed sources
+            TestImpactIndex impactIndex = null;
+            Map<String, String> sourceHashes = null;
+            Set<String> skippedClasses = new TreeSet<String>();
+            List<RunTestsResult> lastResults = null;
+            if (impactAnalysis) {
+                impactIndex = TestImpactIndex.load(getHistoryDir());
+                sourceHashes = TestImpactIndex.hashSources(getSourceIndex().getClasses(), getSourceIndex().getTriggers());
+                String[] selected = selectImpactedTests(impactIndex, sourceHashes, classes, allTests);
+                if (selected != null) {
+                    skippedClasses.addAll(allTests ? impactIndex.getTestClasses() : Arrays.asList(classes));
+                    skippedClasses.removeAll(Arrays.asList(selected));
+
+                    // a class left out of the last run has no result to carry forward, so it runs instead
+                    lastResults = LastRunResults.load(getHistoryDir());
+                    Set<String> noResults = new TreeSet<String>(skippedClasses);
+                    noResults.removeAll(LastRunResults.getTestClasses(lastResults));
+                    if (!noResults.isEmpty()) {
+                        System.out.println("Impact Analysis: no last results of " + noResults.size() + " test class(es), they will run as well");
+                        skippedClasses.removeAll(noResults);
+                        List<String> merged = new ArrayList<String>(Arrays.asList(selected));
+                        merged.addAll(noResults);
+                        selected = merged.toArray(new String[0]);
+                    }
+                    classes = selected;
+                    allTests = false;
+                }
+            }
 
-            // set debug log level
-            DebuggingHeader_element debugHeader = new DebuggingHeader_element();
-            debugHeader.setDebugLevel(readLogType());
-            sc.__setDebuggingHeader(debugHeader);
+            PhaseMetrics.Measurement phase = phaseMetrics.start("connect");
+            ApexTestExecutor executor = newTestExecutor();
+            phase.end();
 
             // run tests
             Calendar startTime = Calendar.getInstance();
-            RunTestsResult res = sc.runTests(runTests);
-            TestResult tr = new TestResult(res, startTime.getTime(), coverageTarget);
+            TestResult tr = new TestResult(startTime.getTime(), coverageTarget);
+            tr.setMaxOpenLogFiles(maxOpenLogFiles);
+            tr.setLogStorage(logStorage);
+            tr.setRenderThreads(renderThreads);
+            tr.setIncremental(incremental);
+            tr.setPipelined(pipelined);
+            tr.setPhaseMetrics(phaseMetrics);
+            if (impactIndex != null) {
+                tr.addDebugLogListener(impactIndex);
+            }
+            GovernorLimitUsage limits = null;
+            if (limitUsage) {
+                limits = GovernorLimitUsage.load(getHistoryDir());
+                tr.addDebugLogListener(limits);
+            }
+            ApexProfiler profiler = null;
+            if (profile) {
+                profiler = new ApexProfiler();
+                tr.addDebugLogListener(profiler);
+            }
+
+            List<TestRun> runs = null;
+            boolean stopped = false;
+            if (progressive) {
+                ProgressiveTestRunner runner = new ProgressiveTestRunner(executor, shards);
+                runner.setFailFast(failFast);
+                runs = runProgressively(runner, tr, classes, allTests, timings, impactIndex != null);
+                stopped = runner.isStopped();
+                tr.setProgress(stopped ? "Stopped after " + tr.getNumTestsFailures() + " failure(s), " + runs.size() + " run(s) finished" : null);
+            } else {
+                List<String[]> classGroups = null;
+                String[] found = logGroupSize > 0 && allTests ? findTestClasses() : classes;
+                if (logGroupSize > 0 && found.length == 0 && allTests) {
+                    System.out.println("Debug Log Groups: no test classes found in the source directory, all tests run at once");
+                    classGroups = splitClasses(classes, allTests, timings);
+                } else if (logGroupSize > 0) {
+                    classes = found;
+                    allTests = false;
+                    classGroups = groupClasses(classes, timings);
+                } else {
+                    classGroups = splitClasses(classes, allTests, timings);
+                }
+
+                if (logGroupSize > 0 && classGroups.size() > 1) {
+                    runs = runLogGroups(executor, tr, classGroups, impactIndex != null);
+                } else {
+                    phase = phaseMetrics.start("runTests");
+                    runs = runTests(executor, classGroups, allTests);
+                    for (TestRun run : runs) {
+                        phase.addBytes(run.getDebugLog() != null ? run.getDebugLog().length() : 0);
+                    }
+                    phase.end();
 
-            // save debug log
-            if (sc.getDebuggingInfo() != null) {
-                tr.separateDebugLog(outDir, sc.getDebuggingInfo().getDebugLog());
+                    phase = phaseMetrics.start("buildResult");
+                    for (TestRun run : runs) {
+                        tr.addResult(run.getResult());
+                    }
+                    phase.end();
+                }
+            }
+
+            RunTestsResult carried = null;
+            if (impactIndex != null && !stopped) {
+                carried = carryForwardResults(impactIndex, sourceHashes, tr, skippedClasses, lastResults);
+            }
+
+            if (pipelined) {
+                // the coverage is complete, so its pages can be rendered while the rest of the task runs
+                tr.startCoverageRendering(outDir, getSrcClassMap(), getSrcTriggerMap());
+            }
+
+            if (!progressive) {
+                // save debug log, unless it was saved when its debug log group finished
+                for (TestRun run : runs) {
+                    if (run.getDebugLog() != null) {
+                        separateDebugLog(tr, run.getDebugLog());
+                    }
+                    // the results are saved for impact analysis, otherwise nothing refers to them any more
+                    run.release(impactIndex != null);
+                }
+            }
+
+            checkDebugLogs(tr, runs);
+
+            if (retryFailures > 0 && !stopped) {
+                phase = phaseMetrics.start("retryFailures");
+                // retries are not recorded, so that a replay reproduces the first runs only
+                ApexTestExecutor retryExecutor = executor;
+                if (executor instanceof RecordingTestExecutor) {
+                    retryExecutor = ((RecordingTestExecutor) executor).getExecutor();
+                }
+                retryFailures(retryExecutor, tr, timings);
+                phase.end();
             }
 
+            phase = phaseMetrics.start("reports");
+
+            // the index is not updated with a partial run, which would hide the classes that didn't run next time
+            if (impactIndex != null && !stopped) {
+                updateImpactAnalysis(impactIndex, sourceHashes, runs, carried);
+            }
+
+            if (profiler != null) {
+                writeProfile(profiler, tr);
+            }
+            if (limits != null) {
+                writeLimitUsage(limits, tr);
+            }
+
+            // a partial run would show up as a drop in the trends
+            if (runHistory && !stopped) {
+                writeTrends(tr);
+            }
+
+            phase.end();
+
             // convert the result to HTML
-            tr.visualizeCoverageResults(outDir, srcClassMap, srcTriggerMap);
+            phase = phaseMetrics.start("visualizeCoverageResults");
+            int filesWritten = tr.getNumFilesWritten();
+            long bytesWritten = tr.getNumBytesWritten();
+            tr.visualizeCoverageResults(outDir, getSrcClassMap(), getSrcTriggerMap());
+            phase.addFiles(tr.getNumFilesWritten() - filesWritten);
+            phase.addBytes(tr.getNumBytesWritten() - bytesWritten);
+            phase.end();
+            if (incremental) {
+                System.out.println("Coverage pages: " + tr.getNumPagesRendered() + " rendered, " + tr.getNumPagesUnchanged() + " unchanged");
+            }
+
+            // remember how long each test took for scheduling shards next time
+            if (usesTimings()) {
+                timings.update(tr);
+                timings.retainClasses(getSourceIndex().getClasses().keySet());
+                timings.save(getHistoryDir());
+            }
+
+            if (metrics) {
+                phaseMetrics.printSummary(System.out);
+                phaseMetrics.write(outDir);
+            }
+
+            if (stopped) {
+                throw new BuildException("Stopped after " + tr.getNumTestsFailures() + " test failure(s) (failFast=" + failFast + ")");
+            }
             
         } catch (BuildException e) {
             e.printStackTrace();
@@ -88,6 +300,610 @@ public class RunTestTask extends SFDCAntTask {
         }
     }
 
+    private ApexTestExecutor newTestExecutor() throws Exception {
+        // recording deletes the runs recorded before, which would be the ones being replayed
+        if (recordTo != null && replayFrom != null && recordTo.getCanonicalFile().equals(replayFrom.getCanonicalFile())) {
+            throw new BuildException("recordTo must be a different directory from replayFrom: " + recordTo);
+        }
+
+        ApexTestExecutor executor = null;
+        if (replayFrom != null) {
+            ReplayTestExecutor replay = new ReplayTestExecutor(replayFrom, replayLatency);
+            System.out.println("Replaying " + replay.getNumRuns() + " recorded run(s) from: " + replayFrom + (replayLatency > 0 ? " (latency " + replayLatency + " ms)" : ""));
+            executor = replay;
+        } else {
+            executor = new SoapTestExecutor(getApexConnection(), readLogType());
+        }
+
+        if (recordTo != null) {
+            System.out.println("Recording runs to: " + recordTo);
+            executor = new RecordingTestExecutor(executor, recordTo);
+        }
+        return executor;
+    }
+
+    private void writeLimitUsage(GovernorLimitUsage limits, TestResult tr) throws IOException {
+        if (limits.isEmpty()) {
+            System.out.println("Governor Limits: no limit usage found in the debug logs, check logType");
+            return;
+        }
+
+        limits.writeReport(outDir, limitThreshold);
+        tr.addReportLink("Governor Limits", GovernorLimitUsage.REPORT_FILENAME);
+
+        List<String> over = limits.getUsagesOverThreshold(limitThreshold);
+        System.out.println("Governor Limits: " + over.size() + " usage(s) at or over " + limitThreshold + "%");
+        for (String usage : over) {
+            System.out.println("  " + usage);
+        }
+        List<String> regressions = limits.getRegressions();
+        if (!regressions.isEmpty()) {
+            System.out.println("Governor Limits: " + regressions.size() + " usage(s) increased since the previous run");
+            for (String regression : regressions) {
+                System.out.println("  " + regression);
+            }
+        }
+
+        limits.retainClasses(getSourceIndex().getClasses().keySet());
+        limits.save(getHistoryDir());
+    }
+
+    /**
+     * Runs the tests against all the orgs at the same time, writes the report of each org to the subdirectory
+     * of outDir named after the org, and compares them in the index page of outDir.
+     * The results of the orgs that finished are reported even when others fail.
+     */
+    /**
+     * Fails when attributes that runOrgs() doesn't support are set, rather than leaving them out silently.
+     */
+    private void checkOrgOptions() {
+        List<String> unsupported = new ArrayList<String>();
+        if (impactAnalysis) {
+            unsupported.add("impactAnalysis");
+        }
+        if (progressive) {
+            unsupported.add("progressive");
+        }
+        if (retryFailures > 0) {
+            unsupported.add("retryFailures");
+        }
+        if (profile) {
+            unsupported.add("profile");
+        }
+        if (limitUsage) {
+            unsupported.add("limitUsage");
+        }
+        if (runHistory) {
+            unsupported.add("runHistory");
+        }
+        if (!unsupported.isEmpty()) {
+            throw new BuildException(StringUtils.join(unsupported, ", ") + " can't be used with org elements");
+        }
+    }
+
+    private void runOrgs(final String[] classes, final boolean allTests, TestTimings timings) throws Exception {
+        final List<String[]> classGroups = splitClasses(classes, allTests, timings);
+        final Date startTime = Calendar.getInstance().getTime();
+        System.out.println("Orgs: " + orgs.size() + " org(s) at a time");
+
+        ExecutorService pool = Executors.newFixedThreadPool(orgs.size());
+        Map<String, TestResult> results = new LinkedHashMap<String, TestResult>();
+        Map<String, Throwable> errors = new LinkedHashMap<String, Throwable>();
+        try {
+            List<Future<TestResult>> futures = new ArrayList<Future<TestResult>>();
+            for (final OrgElement org : orgs) {
+                futures.add(pool.submit(new Callable<TestResult>() {
+                    public TestResult call() throws Exception {
+                        return runOrg(org, classGroups, allTests, startTime);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < orgs.size(); i++) {
+                String name = orgs.get(i).getName();
+                try {
+                    TestResult tr = futures.get(i).get();
+                    results.put(name, tr);
+                    System.out.println("  " + name + ": " + tr.getNumTestsRun() + " run, " + tr.getNumTestsFailures() + " failed, " + tr.getTotalPctCoverage() + "% covered");
+                } catch (ExecutionException e) {
+                    errors.put(name, e.getCause());
+                    System.out.println("  " + name + ": failed - " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        OrgComparison comparison = new OrgComparison();
+        for (Map.Entry<String, TestResult> result : results.entrySet()) {
+            comparison.add(result.getKey(), result.getValue());
+        }
+        comparison.writeReport(outDir);
+        System.out.println("Orgs: " + comparison.getMethodDifferences().size() + " test method(s) and "
+                + comparison.getCoverageDifferences().size() + " class(es) and trigger(s) differ between the orgs");
+
+        if (!errors.isEmpty()) {
+            throw new BuildException("Failed to run tests against " + errors.size() + " org(s): " + errors.keySet(), errors.values().iterator().next());
+        }
+    }
+
+    private TestResult runOrg(OrgElement org, List<String[]> classGroups, boolean allTests, Date startTime) throws Exception {
+        ApexTestExecutor executor = null;
+        if (org.getReplayFrom() != null) {
+            executor = new ReplayTestExecutor(org.getReplayFrom(), replayLatency);
+        } else {
+            executor = new SoapTestExecutor(org.connect(), readLogType());
+        }
+
+        File orgDir = new File(outDir, org.getName());
+        TestResult tr = new TestResult(startTime, coverageTarget);
+        tr.setMaxOpenLogFiles(maxOpenLogFiles);
+        tr.setLogStorage(logStorage);
+        tr.setRenderThreads(renderThreads);
+        tr.setIncremental(incremental);
+        tr.setPipelined(pipelined);
+        tr.setPhaseMetrics(phaseMetrics);
+        List<TestRun> runs = runTests(executor, classGroups, allTests);
+        for (TestRun run : runs) {
+            tr.addResult(run.getResult());
+        }
+        if (pipelined) {
+            tr.startCoverageRendering(orgDir, getSrcClassMap(), getSrcTriggerMap());
+        }
+        for (TestRun run : runs) {
+            if (run.getDebugLog() != null) {
+                tr.separateDebugLog(orgDir, run.getDebugLog());
+            }
+            run.release(false);
+        }
+        tr.visualizeCoverageResults(orgDir, getSrcClassMap(), getSrcTriggerMap());
+        return tr;
+    }
+
+    /**
+     * Reruns the test classes that had failures, up to retryFailures times or until none fails,
+     * and keeps track of how often each method passes only on a retry.
+     * The API runs whole classes, so the other methods of the classes are run again too,
+     * but only the outcomes of the failed methods are taken from the retries.
+     */
+    private void retryFailures(ApexTestExecutor executor, TestResult tr, TestTimings timings) throws Exception {
+        for (int attempt = 1; attempt <= retryFailures; attempt++) {
+            Map<String, Set<String>> failed = tr.getFailedMethods();
+            if (failed.isEmpty()) {
+                break;
+            }
+
+            int numFailed = 0;
+            for (Set<String> methods : failed.values()) {
+                numFailed += methods.size();
+            }
+            System.out.println("Retry " + attempt + " of " + retryFailures + ": " + numFailed + " failed method(s) in " + failed.size() + " class(es)");
+
+            String[] classes = failed.keySet().toArray(new String[0]);
+            int flaky = 0;
+            for (TestRun run : runTests(executor, splitClasses(classes, false, timings), false)) {
+                flaky += tr.addRetryResult(run.getResult(), attempt);
+            }
+            System.out.println("  " + flaky + " passed on retry, " + (numFailed - flaky) + " still failed");
+        }
+
+        FlakinessIndex flakiness = FlakinessIndex.load(getHistoryDir());
+        flakiness.update(tr);
+        flakiness.save(getHistoryDir(), quarantineThreshold);
+
+        List<String> quarantined = flakiness.getQuarantined(quarantineThreshold);
+        if (!quarantined.isEmpty()) {
+            System.out.println("Flaky Tests: " + quarantined.size() + " test(s) flaky in " + quarantineThreshold + "% or more of their runs, listed in " + FlakinessIndex.QUARANTINE_FILENAME);
+            for (String method : quarantined) {
+                System.out.println("  " + method + " (" + flakiness.getScore(method) + "%)");
+            }
+        }
+    }
+
+    private void writeTrends(TestResult tr) throws IOException {
+        // the previous runs shown together with this one
+        RunHistory history = RunHistory.load(getHistoryDir(), trendRuns - 1);
+        history.append(tr);
+
+        TrendReport report = new TrendReport(history, coverageTarget);
+        report.writeReport(outDir);
+        tr.addReportLink("Trends", TrendReport.REPORT_FILENAME);
+
+        List<TrendReport.MethodTrend> slow = report.getNewlySlowMethods();
+        System.out.println("Trends: " + history.getRuns().size() + " run(s), " + slow.size() + " newly slow test(s)");
+        for (TrendReport.MethodTrend trend : slow) {
+            System.out.println("  " + trend.getName() + ": " + (trend.getLatest() / 1000) + " sec (median " + (trend.getPreviousMedian() / 1000) + " sec)");
+        }
+    }
+
+    private void writeProfile(ApexProfiler profiler, TestResult tr) throws IOException {
+        if (profiler.isEmpty()) {
+            System.out.println("Apex Profile: no method calls found in the debug logs, check logType");
+            return;
+        }
+
+        profiler.writeReport(new File(outDir, "profile"));
+        tr.addReportLink("Apex Profile", "profile/" + ApexProfiler.HOTSPOTS_FILENAME);
+
+        System.out.println("Apex Profile: top methods by self time");
+        List<ApexProfiler.MethodStats> hotspots = profiler.getHotspots();
+        for (ApexProfiler.MethodStats stats : hotspots.subList(0, Math.min(hotspots.size(), 10))) {
+            System.out.println("  " + stats.getName() + ": " + (stats.getSelfTime() / 1000000) + " ms self, " + (stats.getTotalTime() / 1000000) + " ms total, " + stats.getCalls() + " calls");
+        }
+    }
+
+    /**
+     * Returns the test classes affected by sources changed since the last run,
+     * or null if they can't be determined and all the tests need to run.
+     */
+    private String[] selectImpactedTests(TestImpactIndex index, Map<String, String> sourceHashes, String[] classes, boolean allTests) {
+        if (index.isEmpty()) {
+            System.out.println("Impact Analysis: no index found, all the tests will run");
+            return null;
+        }
+
+        Set<String> changedSources = index.getChangedSources(sourceHashes);
+        Collection<String> candidates = null;
+        if (allTests) {
+            // a new source may be a test class that is not in the index yet
+            if (index.hasNewSources(sourceHashes)) {
+                System.out.println("Impact Analysis: new sources found, all the tests will run");
+                return null;
+            }
+            candidates = index.getTestClasses();
+        } else {
+            candidates = Arrays.asList(classes);
+        }
+
+        String[] selected = index.selectTests(candidates, sourceHashes);
+        System.out.println("Impact Analysis: " + changedSources.size() + " source(s) changed, " + selected.length + " of " + candidates.size() + " test classes selected");
+        for (String clazz : selected) {
+            System.out.println("  " + clazz);
+        }
+        return selected;
+    }
+
+    /**
+     * Carries the results of skipped test classes forward from the last run.
+     * Returns the result carried forward, or null if no class was skipped.
+     */
+    private RunTestsResult carryForwardResults(TestImpactIndex index, Map<String, String> sourceHashes, TestResult tr, Set<String> skippedClasses, List<RunTestsResult> lastResults) {
+        if (skippedClasses.isEmpty()) {
+            return null;
+        }
+
+        Set<String> unchangedSources = new HashSet<String>(sourceHashes.keySet());
+        unchangedSources.removeAll(index.getChangedSources(sourceHashes));
+
+        RunTestsResult carried = LastRunResults.carryForward(lastResults, skippedClasses, unchangedSources);
+        tr.addCarriedForwardResult(carried);
+        return carried;
+    }
+
+    /**
+     * Saves the results of this run together with those carried forward,
+     * and updates the index with the dependencies found in the debug logs of this run.
+     */
+    private void updateImpactAnalysis(TestImpactIndex index, Map<String, String> sourceHashes, List<TestRun> runs, RunTestsResult carried) throws IOException {
+        List<RunTestsResult> results = new ArrayList<RunTestsResult>();
+        Set<String> ranClasses = new TreeSet<String>();
+        for (TestRun run : runs) {
+            results.add(run.getResult());
+            for (RunTestSuccess success : run.getResult().getSuccesses()) {
+                ranClasses.add(success.getName());
+            }
+            for (RunTestFailure failure : run.getResult().getFailures()) {
+                ranClasses.add(failure.getName());
+            }
+        }
+
+        if (carried != null) {
+            results.add(carried);
+        }
+
+        LastRunResults.save(getHistoryDir(), results);
+        index.update(ranClasses, sourceHashes);
+        index.save(getHistoryDir());
+    }
+
+    /**
+     * Splits the test classes into shards of similar expected durations based on the timings of past runs.
+     * All the classes make a single shard when all tests are run.
+     */
+    /**
+     * Returns true if test classes are scheduled by the durations of past runs.
+     */
+    private boolean usesTimings() {
+        return shards > 1 || progressive || logGroupSize > 0;
+    }
+
+    private List<String[]> splitClasses(String[] classes, boolean allTests, TestTimings timings) {
+        int numShards = Math.min(shards, classes.length);
+        List<String[]> classGroups = new ArrayList<String[]>();
+
+        if (allTests || numShards == 1) {
+            classGroups.add(classes);
+            return classGroups;
+        } else if (numShards == 0) {
+            // nothing to run
+            return classGroups;
+        }
+
+        System.out.println("Number of Shards: " + numShards + (timings.isEmpty() ? "" : " (scheduled by past durations)"));
+        ShardScheduler scheduler = new ShardScheduler(timings.getClassDurations());
+        for (ShardScheduler.Shard shard : scheduler.schedule(classes, numShards)) {
+            System.out.println("  " + shard.getClasses().length + " classes, expected " + (shard.getExpectedDuration() / 1000) + " sec");
+            classGroups.add(shard.getClasses());
+        }
+        return classGroups;
+    }
+
+    /**
+     * Splits the test classes into groups of at most logGroupSize classes, so that the debug log of each runTests call
+     * stays under the maximum size. The longest classes go to the first groups to be run first.
+     */
+    private List<String[]> groupClasses(String[] classes, TestTimings timings) {
+        String[] sorted = new ShardScheduler(timings.getClassDurations()).sortLongestFirst(classes);
+        List<String[]> classGroups = new ArrayList<String[]>();
+        for (int i = 0; i < sorted.length; i += logGroupSize) {
+            classGroups.add(Arrays.copyOfRange(sorted, i, Math.min(i + logGroupSize, sorted.length)));
+        }
+        System.out.println("Debug Log Groups: " + classGroups.size() + " group(s) of up to " + logGroupSize + " classes, " + getLogGroupCalls() + " at a time");
+        return classGroups;
+    }
+
+    private int getLogGroupCalls() {
+        return Math.max(shards, MIN_LOG_GROUP_CALLS);
+    }
+
+    /**
+     * Runs the debug log groups concurrently, and adds the result and splits the debug log of each group
+     * as soon as it finishes, so that only the debug logs of the groups still running are held in memory.
+     * The runs are returned in the order they finished, released.
+     */
+    private List<TestRun> runLogGroups(ApexTestExecutor executor, final TestResult tr, List<String[]> classGroups, final boolean keepResults) throws Exception {
+        List<RunTestsRequest> requests = new ArrayList<RunTestsRequest>();
+        for (String[] classes : classGroups) {
+            requests.add(newRunTestsRequest(classes, false));
+        }
+
+        ProgressiveTestRunner runner = new ProgressiveTestRunner(executor, getLogGroupCalls());
+        final PhaseMetrics.Measurement phase = phaseMetrics.start("runTests");
+        try {
+            return runner.run(requests, new ProgressiveTestRunner.Listener() {
+                public void runFinished(TestRun run, int numFinished, int numRequests) throws Exception {
+                    phase.addBytes(run.getDebugLog() != null ? run.getDebugLog().length() : 0);
+                    PhaseMetrics.Measurement buildPhase = phaseMetrics.start("buildResult");
+                    tr.addResult(run.getResult());
+                    buildPhase.end();
+                    if (run.getDebugLog() != null) {
+                        separateDebugLog(tr, run.getDebugLog());
+                    }
+                    run.release(keepResults);
+                }
+            });
+        } finally {
+            phase.end();
+        }
+    }
+
+    /**
+     * Warns about debug logs cut off at the maximum size, and test methods left without a debug log.
+     */
+    private void checkDebugLogs(TestResult tr, List<TestRun> runs) {
+        if (readLogType() == LogType.None) {
+            return;
+        }
+
+        for (TestRun run : runs) {
+            if (run.isDebugLogTruncated()) {
+                String classes = run.getClasses() == null || run.getClasses().length == 0 ? "ALL" : Arrays.toString(run.getClasses());
+                System.out.println("WARNING: Debug log truncated at the maximum size for the run of " + classes);
+            }
+        }
+
+        int missing = 0;
+        for (TestClassResult tcr : tr.getTestClassResults()) {
+            if (tcr.isCarriedForward()) {
+                continue;
+            }
+            for (String methodName : tcr.getMethodTimes().keySet()) {
+                if (tcr.getDebugLog(methodName) == null) {
+                    missing++;
+                }
+            }
+        }
+        if (missing > 0) {
+            System.out.println("WARNING: " + missing + " test method(s) have no debug log"
+                    + (logGroupSize > 0 ? ", try a smaller logGroupSize" : ", try logGroupSize to run classes in smaller groups"));
+        }
+    }
+
+    /**
+     * Runs each test class with a separate runTests call, at most as many calls at a time as shards, longest first.
+     * Each result is added to the report as soon as its call finishes, and the index page is rewritten
+     * so that the results so far can be seen while the rest are running.
+     */
+    private List<TestRun> runProgressively(ProgressiveTestRunner runner, final TestResult tr, String[] classes, boolean allTests, TestTimings timings, final boolean keepResults) throws Exception {
+        if (allTests) {
+            classes = findTestClasses();
+        }
+
+        List<RunTestsRequest> requests = new ArrayList<RunTestsRequest>();
+        if (allTests && classes.length == 0) {
+            System.out.println("Progressive Execution: no test classes found in the source directory, all tests run at once");
+            requests.add(newRunTestsRequest(getClasses(), true));
+        } else {
+            for (String clazz : new ShardScheduler(timings.getClassDurations()).sortLongestFirst(classes)) {
+                requests.add(newRunTestsRequest(new String[] {clazz}, false));
+            }
+        }
+        System.out.println("Progressive Execution: " + requests.size() + " run(s), " + shards + " at a time" + (failFast > 0 ? ", stopping after " + failFast + " failure(s)" : ""));
+
+        final long start = System.currentTimeMillis();
+        PhaseMetrics.Measurement phase = phaseMetrics.start("runTests");
+        try {
+            return runner.run(requests, new ProgressiveTestRunner.Listener() {
+                public void runFinished(TestRun run, int numFinished, int numRequests) throws Exception {
+                    PhaseMetrics.Measurement phase = phaseMetrics.start("buildResult");
+                    tr.addResult(run.getResult());
+                    phase.end();
+                    if (run.getDebugLog() != null) {
+                        separateDebugLog(tr, run.getDebugLog());
+                    }
+
+                    String name = run.getClasses() != null && run.getClasses().length == 1 ? run.getClasses()[0] : "ALL";
+                    System.out.println("[" + numFinished + "/" + numRequests + "] " + name + ": "
+                            + run.getResult().getNumTestsRun() + " run, " + run.getResult().getNumFailures() + " failed"
+                            + " (" + ((System.currentTimeMillis() - start) / 1000) + " sec elapsed)");
+
+                    run.release(keepResults);
+
+                    tr.setProgress(numFinished + " of " + numRequests + " run(s) finished");
+                    tr.writeIndex(outDir);
+                }
+            });
+        } finally {
+            phase.end();
+        }
+    }
+
+    private void separateDebugLog(TestResult tr, String debugLog) throws IOException {
+        PhaseMetrics.Measurement phase = phaseMetrics.start("separateDebugLog");
+        int filesWritten = tr.getNumFilesWritten();
+        try {
+            tr.separateDebugLog(outDir, debugLog);
+        } finally {
+            phase.addBytes(debugLog.length());
+            phase.addFiles(tr.getNumFilesWritten() - filesWritten);
+            phase.end();
+        }
+    }
+
+    /**
+     * Returns the names of the test classes found in the source directory.
+     */
+    private String[] findTestClasses() throws IOException {
+        Set<String> found = new TreeSet<String>();
+        for (Map.Entry<String, File> src : getSourceIndex().getClasses().entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            BufferedReader in = null;
+            try {
+                in = new BufferedReader(new InputStreamReader(new FileInputStream(src.getValue()), "UTF-8"));
+                char[] buf = new char[8192];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    sb.append(buf, 0, n);
+                }
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+
+            // a class that only mentions them in a comment or a string is not a test class
+            String code = stripCommentsAndStrings(sb).toLowerCase();
+            if (code.contains("@istest") || code.contains("testmethod")) {
+                found.add(src.getKey());
+            }
+        }
+        return found.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the Apex source with its comments and string literals replaced with a space.
+     */
+    private static String stripCommentsAndStrings(CharSequence src) {
+        StringBuilder sb = new StringBuilder(src.length());
+        int len = src.length();
+        int i = 0;
+        while (i < len) {
+            char c = src.charAt(i);
+            char next = i + 1 < len ? src.charAt(i + 1) : 0;
+            if (c == '/' && next == '/') {
+                while (i < len && src.charAt(i) != '\n') {
+                    i++;
+                }
+                sb.append(' ');
+            } else if (c == '/' && next == '*') {
+                i += 2;
+                while (i < len && !(src.charAt(i) == '*' && i + 1 < len && src.charAt(i + 1) == '/')) {
+                    i++;
+                }
+                i += 2;
+                sb.append(' ');
+            } else if (c == '\'') {
+                i++;
+                while (i < len && src.charAt(i) != '\'' && src.charAt(i) != '\n') {
+                    // skip the escaped character, which may be a quote
+                    i += src.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+                sb.append(' ');
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private RunTestsRequest newRunTestsRequest(String[] classes, boolean allTests) {
+        RunTestsRequest runTests = new RunTestsRequest();
+        runTests.setAllTests(allTests);
+        runTests.setClasses(classes);
+        
+        if (getNamespace() != null) {
+            runTests.setNamespace(getNamespace());
+        }
+        return runTests;
+    }
+
+    /**
+     * Runs each group of test classes with a separate runTests call. The calls are made concurrently.
+     * The results are returned in the same order as the groups.
+     */
+    private List<TestRun> runTests(final ApexTestExecutor executor, List<String[]> classGroups, boolean allTests) throws Exception {
+        List<TestRun> runs = new ArrayList<TestRun>();
+        if (classGroups.isEmpty()) {
+            return runs;
+        } else if (classGroups.size() == 1) {
+            runs.add(executor.run(newRunTestsRequest(classGroups.get(0), allTests)));
+            return runs;
+        }
+
+        // groups of logGroupSize can outnumber shards, which caps the calls at a time
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(classGroups.size(), shards));
+        try {
+            List<Future<TestRun>> futures = new ArrayList<Future<TestRun>>();
+            for (String[] classes : classGroups) {
+                final RunTestsRequest request = newRunTestsRequest(classes, allTests);
+                futures.add(pool.submit(new Callable<TestRun>() {
+                    public TestRun call() throws Exception {
+                        return executor.run(request);
+                    }
+                }));
+            }
+
+            for (Future<TestRun> future : futures) {
+                try {
+                    runs.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return runs;
+    }
+
     public String[] getClasses() {
         List<String> validTestClasses = new ArrayList<String>();
         for (ClassElement clazz : testClasses) {
@@ -102,6 +918,21 @@ public class RunTestTask extends SFDCAntTask {
         this.testClasses.add(clazz);
     }
 
+    /**
+     * Adds an org once its attributes are set, so that its name can be checked.
+     */
+    public void addConfiguredOrg(OrgElement org) {
+        if (org.getName() == null || org.getName().length() == 0) {
+            throw new BuildException("org requires a name");
+        }
+        for (OrgElement other : orgs) {
+            if (other.getName().equals(org.getName())) {
+                throw new BuildException("Duplicate org name: " + org.getName());
+            }
+        }
+        this.orgs.add(org);
+    }
+
     public boolean getRunAllTests() {
         return this.runAllTests;
     }
@@ -136,34 +967,73 @@ public class RunTestTask extends SFDCAntTask {
 
     public void setSrcDir(File srcDirPath) {
         this.srcDir = srcDirPath;
+    }
 
-        // create a Map of classes - key=class name, value=source file
-        File classesDir = new File(srcDirPath + "/classes");
-        File[] classes = classesDir.listFiles(
-                new FilenameFilter() {
-                    public boolean accept(File dir, String name) {
-                        return name.endsWith(".cls");
-                    }
-                });
+    public List<File> getSrcDirs() {
+        return srcDirs;
+    }
 
-        for (File srcFile : classes) {
-            String programName = srcFile.getName().replaceAll("\\.cls$", "");
-            srcClassMap.put(programName, srcFile);
+    /**
+     * Sets more source directories, separated by commas, to look for sources in after srcDir.
+     */
+    public void setSrcDirs(String srcDirs) {
+        this.srcDirs.clear();
+        for (String dir : srcDirs.split(",")) {
+            if (dir.trim().length() > 0) {
+                this.srcDirs.add(getProject() != null ? getProject().resolveFile(dir.trim()) : new File(dir.trim()));
+            }
         }
-        
-        // create a Map of triggers - key=trigger name, value=source file
-        File triggersDir = new File(srcDirPath + "/triggers");
-        File[] triggers = triggersDir.listFiles(
-                new FilenameFilter() {
-                    public boolean accept(File dir, String name) {
-                        return name.endsWith(".trigger");
-                    }
-                });
+    }
 
-        for (File srcFile : triggers) {
-            String programName = srcFile.getName().replaceAll("\\.trigger$", "");
-            srcTriggerMap.put(programName, srcFile);
+    /**
+     * Returns the index of the sources in srcDir and srcDirs, which is built the first time it's needed.
+     * When historyDir is specified, directories not modified since the last run are not listed again.
+     */
+    private synchronized SourceIndex getSourceIndex() throws IOException {
+        if (sourceIndex == null) {
+            List<File> roots = new ArrayList<File>();
+            if (srcDir != null) {
+                roots.add(srcDir);
+            }
+            roots.addAll(srcDirs);
+
+            // kept only in a historyDir of its own, so that the listing doesn't end up in the report
+            SourceIndex index = new SourceIndex(roots, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+            if (historyDir != null) {
+                index.load(historyDir);
+            }
+            index.build();
+            if (historyDir != null) {
+                index.save(historyDir);
+            }
+            if (index.getNumDuplicates() > 0) {
+                System.out.println("WARNING: " + index.getNumDuplicates() + " source(s) ignored because sources of the same names were found before");
+            }
+            sourceIndex = index;
         }
+        return sourceIndex;
+    }
+
+    private Map<String, File> getSrcClassMap() throws IOException {
+        return withNamespace(getSourceIndex().getClasses());
+    }
+
+    private Map<String, File> getSrcTriggerMap() throws IOException {
+        return withNamespace(getSourceIndex().getTriggers());
+    }
+
+    /**
+     * Adds the names prefixed with the namespace, which coverage results of a namespaced org use, to the sources.
+     */
+    private Map<String, File> withNamespace(Map<String, File> sources) {
+        if (namespace == null || namespace.length() == 0) {
+            return sources;
+        }
+        Map<String, File> all = new HashMap<String, File>(sources);
+        for (Map.Entry<String, File> source : sources.entrySet()) {
+            all.put(namespace + "__" + source.getKey(), source.getValue());
+        }
+        return all;
     }
 
     public int getCoverageTarget() {
@@ -174,6 +1044,191 @@ public class RunTestTask extends SFDCAntTask {
         this.coverageTarget = coverageTarget;
     }
 
+    public int getMaxOpenLogFiles() {
+        return maxOpenLogFiles;
+    }
+
+    public void setMaxOpenLogFiles(int maxOpenLogFiles) {
+        this.maxOpenLogFiles = maxOpenLogFiles;
+    }
+
+    public String getLogStorage() {
+        return logStorage;
+    }
+
+    public void setLogStorage(String logStorage) {
+        this.logStorage = logStorage;
+    }
+
+    public boolean getPipelined() {
+        return pipelined;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    public void setRenderThreads(int renderThreads) {
+        this.renderThreads = renderThreads;
+    }
+
+    public boolean getIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        if (shards < 1) {
+            throw new BuildException("shards must be at least 1: " + shards);
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Returns the directory where data carried over to the next run is saved. Defaults to outDir.
+     */
+    public File getHistoryDir() {
+        return historyDir != null ? historyDir : outDir;
+    }
+
+    public void setHistoryDir(File historyDir) {
+        this.historyDir = historyDir;
+    }
+
+    public boolean getImpactAnalysis() {
+        return impactAnalysis;
+    }
+
+    public void setImpactAnalysis(boolean impactAnalysis) {
+        this.impactAnalysis = impactAnalysis;
+    }
+
+    public File getRecordTo() {
+        return recordTo;
+    }
+
+    public void setRecordTo(File recordTo) {
+        this.recordTo = recordTo;
+    }
+
+    public File getReplayFrom() {
+        return replayFrom;
+    }
+
+    public void setReplayFrom(File replayFrom) {
+        this.replayFrom = replayFrom;
+    }
+
+    public long getReplayLatency() {
+        return replayLatency;
+    }
+
+    public void setReplayLatency(long replayLatency) {
+        this.replayLatency = replayLatency;
+    }
+
+    public boolean getProgressive() {
+        return progressive;
+    }
+
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    public int getFailFast() {
+        return failFast;
+    }
+
+    public void setFailFast(int failFast) {
+        this.failFast = failFast;
+    }
+
+    public boolean getProfile() {
+        return profile;
+    }
+
+    public void setProfile(boolean profile) {
+        this.profile = profile;
+    }
+
+    public boolean getLimitUsage() {
+        return limitUsage;
+    }
+
+    public void setLimitUsage(boolean limitUsage) {
+        this.limitUsage = limitUsage;
+    }
+
+    public int getLimitThreshold() {
+        return limitThreshold;
+    }
+
+    public void setLimitThreshold(int limitThreshold) {
+        this.limitThreshold = limitThreshold;
+    }
+
+    public boolean getRunHistory() {
+        return runHistory;
+    }
+
+    public void setRunHistory(boolean runHistory) {
+        this.runHistory = runHistory;
+    }
+
+    public int getTrendRuns() {
+        return trendRuns;
+    }
+
+    public void setTrendRuns(int trendRuns) {
+        if (trendRuns < 1) {
+            throw new BuildException("trendRuns must be at least 1: " + trendRuns);
+        }
+        this.trendRuns = trendRuns;
+    }
+
+    public int getRetryFailures() {
+        return retryFailures;
+    }
+
+    public void setRetryFailures(int retryFailures) {
+        this.retryFailures = retryFailures;
+    }
+
+    public int getQuarantineThreshold() {
+        return quarantineThreshold;
+    }
+
+    public void setQuarantineThreshold(int quarantineThreshold) {
+        this.quarantineThreshold = quarantineThreshold;
+    }
+
+    public boolean getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getLogGroupSize() {
+        return logGroupSize;
+    }
+
+    public void setLogGroupSize(int logGroupSize) {
+        this.logGroupSize = logGroupSize;
+    }
+
     public String getLogType() {
         return this.logType;
     }
@@ -186,6 +1241,37 @@ public class RunTestTask extends SFDCAntTask {
         return logType == null ? LogType.None : LogType.valueOf(logType);
     }
 
+    /**
+     * An org to run the tests against. It takes the same login attributes as the task, such as username,
+     * password and serverurl, and a name, which is used as the name of the directory of its report.
+     * Recorded runs can be replayed instead with replayFrom.
+     */
+    public static class OrgElement extends SFDCAntTask {
+        private String name;
+        private File replayFrom;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public File getReplayFrom() {
+            return replayFrom;
+        }
+
+        public void setReplayFrom(File replayFrom) {
+            this.replayFrom = replayFrom;
+        }
+
+        SoapConnection connect() throws ConnectionException {
+            validateAttributes();
+            return getApexConnection();
+        }
+    }
+
     public static class ClassElement {
         private String text = "";
         private boolean test = true;
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.CodeCoverageWarning;
+import com.sforce.soap.apex.CodeLocation;
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
+import com.sforce.soap.apex.RunTestsResult;
+
+/**
+ * Saves RunTestsResult objects to a file and reads them back.
+ * Only the fields this task uses are saved.
+ */
+public class RunTestsResultCodec {
+    private static final int MAGIC = 0x41545052; // "ATPR"
+    private static final int VERSION = 1;
+
+    public static void write(File file, List<RunTestsResult> results) throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(results.size());
+            for (RunTestsResult result : results) {
+                writeResult(out, result);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    public static List<RunTestsResult> read(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported file format: " + file.getAbsolutePath());
+            }
+
+            int numResults = in.readInt();
+            List<RunTestsResult> results = new ArrayList<RunTestsResult>();
+            for (int i = 0; i < numResults; i++) {
+                results.add(readResult(in));
+            }
+            return results;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void writeResult(DataOutputStream out, RunTestsResult result) throws IOException {
+        out.writeDouble(result.getTotalTime());
+        out.writeInt(result.getNumTestsRun());
+        out.writeInt(result.getNumFailures());
+
+        RunTestSuccess[] successes = nonNull(result.getSuccesses(), new RunTestSuccess[0]);
+        out.writeInt(successes.length);
+        for (RunTestSuccess success : successes) {
+            writeString(out, success.getId());
+            writeString(out, success.getNamespace());
+            writeString(out, success.getName());
+            writeString(out, success.getMethodName());
+            out.writeDouble(success.getTime());
+        }
+
+        RunTestFailure[] failures = nonNull(result.getFailures(), new RunTestFailure[0]);
+        out.writeInt(failures.length);
+        for (RunTestFailure failure : failures) {
+            writeString(out, failure.getId());
+            writeString(out, failure.getNamespace());
+            writeString(out, failure.getName());
+            writeString(out, failure.getMethodName());
+            writeString(out, failure.getMessage());
+            writeString(out, failure.getStackTrace());
+            out.writeDouble(failure.getTime());
+        }
+
+        CodeCoverageResult[] coverages = nonNull(result.getCodeCoverage(), new CodeCoverageResult[0]);
+        out.writeInt(coverages.length);
+        for (CodeCoverageResult coverage : coverages) {
+            writeString(out, coverage.getId());
+            writeString(out, coverage.getNamespace());
+            writeString(out, coverage.getName());
+            writeString(out, coverage.getType());
+            out.writeInt(coverage.getNumLocations());
+            out.writeInt(coverage.getNumLocationsNotCovered());
+            writeLocations(out, coverage.getLocationsNotCovered());
+            writeLocations(out, coverage.getDmlInfo());
+            writeLocations(out, coverage.getMethodInfo());
+            writeLocations(out, coverage.getSoqlInfo());
+            writeLocations(out, coverage.getSoslInfo());
+        }
+
+        CodeCoverageWarning[] warnings = nonNull(result.getCodeCoverageWarnings(), new CodeCoverageWarning[0]);
+        out.writeInt(warnings.length);
+        for (CodeCoverageWarning warning : warnings) {
+            writeString(out, warning.getId());
+            writeString(out, warning.getNamespace());
+            writeString(out, warning.getName());
+            writeString(out, warning.getMessage());
+        }
+    }
+
+    private static RunTestsResult readResult(DataInputStream in) throws IOException {
+        RunTestsResult result = new RunTestsResult();
+        result.setTotalTime(in.readDouble());
+        result.setNumTestsRun(in.readInt());
+        result.setNumFailures(in.readInt());
+
+        RunTestSuccess[] successes = new RunTestSuccess[in.readInt()];
+        for (int i = 0; i < successes.length; i++) {
+            RunTestSuccess success = new RunTestSuccess();
+            success.setId(readString(in));
+            success.setNamespace(readString(in));
+            success.setName(readString(in));
+            success.setMethodName(readString(in));
+            success.setTime(in.readDouble());
+            successes[i] = success;
+        }
+        result.setSuccesses(successes);
+
+        RunTestFailure[] failures = new RunTestFailure[in.readInt()];
+        for (int i = 0; i < failures.length; i++) {
+            RunTestFailure failure = new RunTestFailure();
+            failure.setId(readString(in));
+            failure.setNamespace(readString(in));
+            failure.setName(readString(in));
+            failure.setMethodName(readString(in));
+            failure.setMessage(readString(in));
+            failure.setStackTrace(readString(in));
+            failure.setTime(in.readDouble());
+            failures[i] = failure;
+        }
+        result.setFailures(failures);
+
+        CodeCoverageResult[] coverages = new CodeCoverageResult[in.readInt()];
+        for (int i = 0; i < coverages.length; i++) {
+            CodeCoverageResult coverage = new CodeCoverageResult();
+            coverage.setId(readString(in));
+            coverage.setNamespace(readString(in));
+            coverage.setName(readString(in));
+            coverage.setType(readString(in));
+            coverage.setNumLocations(in.readInt());
+            coverage.setNumLocationsNotCovered(in.readInt());
+            coverage.setLocationsNotCovered(readLocations(in));
+            coverage.setDmlInfo(readLocations(in));
+            coverage.setMethodInfo(readLocations(in));
+            coverage.setSoqlInfo(readLocations(in));
+            coverage.setSoslInfo(readLocations(in));
+            coverages[i] = coverage;
+        }
+        result.setCodeCoverage(coverages);
+
+        CodeCoverageWarning[] warnings = new CodeCoverageWarning[in.readInt()];
+        for (int i = 0; i < warnings.length; i++) {
+            CodeCoverageWarning warning = new CodeCoverageWarning();
+            warning.setId(readString(in));
+            warning.setNamespace(readString(in));
+            warning.setName(readString(in));
+            warning.setMessage(readString(in));
+            warnings[i] = warning;
+        }
+        result.setCodeCoverageWarnings(warnings);
+
+        return result;
+    }
+
+    private static void writeLocations(DataOutputStream out, CodeLocation[] locations) throws IOException {
+        locations = nonNull(locations, new CodeLocation[0]);
+        out.writeInt(locations.length);
+        for (CodeLocation loc : locations) {
+            out.writeInt(loc.getLine());
+            out.writeInt(loc.getColumn());
+            out.writeInt(loc.getNumExecutions());
+            out.writeDouble(loc.getTime());
+        }
+    }
+
+    private static CodeLocation[] readLocations(DataInputStream in) throws IOException {
+        CodeLocation[] locations = new CodeLocation[in.readInt()];
+        for (int i = 0; i < locations.length; i++) {
+            CodeLocation loc = new CodeLocation();
+            loc.setLine(in.readInt());
+            loc.setColumn(in.readInt());
+            loc.setNumExecutions(in.readInt());
+            loc.setTime(in.readDouble());
+            locations[i] = loc;
+        }
+        return locations;
+    }
+
+    // DataOutputStream#writeUTF() can't write strings longer than 64KB, which stack traces may exceed
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static <T> T[] nonNull(T[] array, T[] empty) {
+        return array != null ? array : empty;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits test classes into shards of similar expected durations.
+ * Classes are assigned longest first, each to the shard with the smallest total so far.
+ */
+public class ShardScheduler {
+    private Map<String, Double> classDurations;
+    private double defaultDuration;
+
+    public ShardScheduler(Map<String, Double> classDurations) {
+        this.classDurations = classDurations;
+        this.defaultDuration = median(classDurations.values());
+    }
+
+    /**
+     * Returns the expected duration of the class in milliseconds.
+     * Classes with no history are given the median duration of the known classes.
+     * Every class weighs at least 1 ms, since each of them costs some time to run.
+     */
+    public double getExpectedDuration(String className) {
+        Double duration = classDurations.get(className);
+        return Math.max(duration != null ? duration : defaultDuration, 1);
+    }
+
+    public List<Shard> schedule(String[] classes, int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("numShards must be positive: " + numShards);
+        }
+        List<Shard> shards = new ArrayList<Shard>();
+        for (int i = 0; i < numShards; i++) {
+            shards.add(new Shard());
+        }
+
+        for (String className : sortLongestFirst(classes)) {
+            Shard lightest = shards.get(0);
+            for (Shard shard : shards) {
+                if (shard.getExpectedDuration() < lightest.getExpectedDuration()) {
+                    lightest = shard;
+                }
+            }
+            lightest.add(className, getExpectedDuration(className));
+        }
+        return shards;
+    }
+
+    /**
+     * Returns the classes sorted by expected duration, longest first.
+     * The sort is stable, so classes of the same duration keep the given order.
+     */
+    public String[] sortLongestFirst(String[] classes) {
+        List<String> sortedClasses = new ArrayList<String>(Arrays.asList(classes));
+        Collections.sort(sortedClasses, new Comparator<String>() {
+            public int compare(String c1, String c2) {
+                return Double.compare(getExpectedDuration(c2), getExpectedDuration(c1));
+            }
+        });
+        return sortedClasses.toArray(new String[0]);
+    }
+
+    private static double median(Collection<Double> values) {
+        if (values.isEmpty()) {
+            return 1;
+        }
+        List<Double> sorted = new ArrayList<Double>(values);
+        Collections.sort(sorted);
+        int mid = sorted.size() / 2;
+        if (sorted.size() % 2 == 1) {
+            return sorted.get(mid);
+        } else {
+            return (sorted.get(mid - 1) + sorted.get(mid)) / 2;
+        }
+    }
+
+    public static class Shard {
+        private List<String> classes = new ArrayList<String>();
+        private double expectedDuration = 0;
+
+        void add(String className, double duration) {
+            classes.add(className);
+            expectedDuration += duration;
+        }
+
+        public String[] getClasses() {
+            return classes.toArray(new String[0]);
+        }
+
+        public double getExpectedDuration() {
+            return expectedDuration;
+        }
+    }
+}
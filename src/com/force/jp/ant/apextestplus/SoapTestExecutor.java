@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import com.sforce.soap.apex.DebuggingHeader_element;
+import com.sforce.soap.apex.LogType;
+import com.sforce.soap.apex.RunTestsRequest;
+import com.sforce.soap.apex.RunTestsResult;
+import com.sforce.soap.apex.SoapConnection;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * Runs Apex tests through the Apex SOAP API.
+ * The first run uses the given connection. Each of the following runs gets a connection of its own
+ * that shares the session and connection settings of the given one, so that runs can be made concurrently
+ * and every run gets its own debug log.
+ */
+public class SoapTestExecutor implements ApexTestExecutor {
+    private SoapConnection connection;
+    private LogType logType;
+    private boolean connectionUsed = false;
+
+    public SoapTestExecutor(SoapConnection connection, LogType logType) {
+        this.connection = connection;
+        this.logType = logType;
+    }
+
+    public TestRun run(RunTestsRequest request) throws ConnectionException {
+        SoapConnection sc = acquireConnection();
+
+        // set debug log level
+        DebuggingHeader_element debugHeader = new DebuggingHeader_element();
+        debugHeader.setDebugLevel(logType);
+        sc.__setDebuggingHeader(debugHeader);
+
+        // run tests
+        RunTestsResult res = sc.runTests(request);
+        String debugLog = sc.getDebuggingInfo() != null ? sc.getDebuggingInfo().getDebugLog() : null;
+        return new TestRun(request.getClasses(), res, debugLog);
+    }
+
+    private synchronized SoapConnection acquireConnection() throws ConnectionException {
+        if (!connectionUsed) {
+            connectionUsed = true;
+            return connection;
+        }
+
+        // the same proxy, timeouts and compression as the given connection, which the task has configured
+        ConnectorConfig base = connection.getConfig();
+        ConnectorConfig config = new ConnectorConfig();
+        config.setSessionId(base.getSessionId());
+        config.setServiceEndpoint(base.getServiceEndpoint());
+        config.setProxy(base.getProxy());
+        config.setProxyUsername(base.getProxyUsername());
+        config.setProxyPassword(base.getProxyPassword());
+        config.setNtlmDomain(base.getNtlmDomain());
+        config.setReadTimeout(base.getReadTimeout());
+        config.setConnectionTimeout(base.getConnectionTimeout());
+        config.setCompression(base.isCompression());
+        config.setMaxRequestSize(base.getMaxRequestSize());
+        config.setMaxResponseSize(base.getMaxResponseSize());
+        config.setValidateSchema(base.isValidateSchema());
+        config.setTraceMessage(base.isTraceMessage());
+        config.setPrettyPrintXml(base.isPrettyPrintXml());
+        return new SoapConnection(config);
+    }
+}
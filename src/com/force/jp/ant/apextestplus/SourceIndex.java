@@ -0,0 +1,375 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The Apex classes (*.cls) and triggers (*.trigger) found under one or more source roots.
+ * A root with the classic layout (classes/ and triggers/ in it) is looked up in those directories only,
+ * so that copies kept elsewhere in it, e.g. in an archive directory, don't take their place.
+ * Other roots are searched at any depth, up to MAX_DEPTH levels, to support nested layouts such as
+ * force-app/main/default/classes. Directories whose names start with "." and symbolic links to directories
+ * are skipped. When the same name is found more than once, the one found first, in the order of the roots, is taken.
+ *
+ * Directories are listed in parallel. The listing of each directory is saved together with its
+ * modification time, so that directories unchanged since the last run are not listed again.
+ * The size and modification time of each source file are recorded too.
+ */
+public class SourceIndex {
+    public static final String FILENAME = "source-index.txt";
+
+    private static final String HEADER = "# ApexTestPlus source index 2";
+    private static final String CLASS_SUFFIX = ".cls";
+    private static final String TRIGGER_SUFFIX = ".trigger";
+    private static final long MTIME_GRANULARITY = 2000;
+    private static final String[] CLASSIC_DIRS = { "classes", "triggers" };
+    private static final int MAX_DEPTH = 32;
+
+    private List<File> roots;
+    private int threads;
+    private Map<String, Listing> previous = new HashMap<String, Listing>();
+    private Map<String, Listing> listings = new TreeMap<String, Listing>();
+    private Map<String, SourceFile> classes = new TreeMap<String, SourceFile>();
+    private Map<String, SourceFile> triggers = new TreeMap<String, SourceFile>();
+    private int numListed;
+    private int numDuplicates;
+
+    public SourceIndex(List<File> roots, int threads) {
+        this.roots = roots;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Loads the listings saved in the directory, if any, to be reused by build().
+     */
+    public void load(File dir) throws IOException {
+        File file = new File(dir, FILENAME);
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            if (!HEADER.equals(in.readLine())) {
+                return;
+            }
+            Listing listing = null;
+            String line = null;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                try {
+                    if (fields[0].equals("D")) {
+                        listing = new Listing(new File(fields[1]), Long.parseLong(fields[2]));
+                        previous.put(fields[1], listing);
+                    } else if (fields[0].equals("S") && listing != null) {
+                        listing.subdirs.add(new File(listing.dir, fields[1]));
+                    } else if (fields[0].equals("F") && listing != null) {
+                        listing.files.add(new SourceFile(new File(listing.dir, fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                    }
+                } catch (RuntimeException e) {
+                    // ignore broken lines, their directories are listed again
+                    listing = null;
+                }
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the sources under the roots. Roots that don't exist are skipped.
+     */
+    public void build() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (File root : roots) {
+                List<File> classicDirs = new ArrayList<File>();
+                for (String name : CLASSIC_DIRS) {
+                    File dir = new File(root, name);
+                    if (dir.isDirectory()) {
+                        classicDirs.add(dir);
+                    }
+                }
+
+                if (!classicDirs.isEmpty()) {
+                    walk(pool, classicDirs, 0);
+                } else if (root.isDirectory()) {
+                    walk(pool, Collections.singletonList(root), MAX_DEPTH);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists the directories and their subdirectories down to maxDepth levels, a level at a time, each level in parallel,
+     * and adds the sources in the order of the paths so that the result doesn't depend on timing.
+     */
+    private void walk(ExecutorService pool, List<File> dirs, int maxDepth) throws IOException {
+        Map<String, Listing> found = new TreeMap<String, Listing>();
+        List<File> level = new ArrayList<File>(dirs);
+
+        CompletionService<Listing> completion = new ExecutorCompletionService<Listing>(pool);
+        for (int depth = 0; !level.isEmpty(); depth++) {
+            for (final File dir : level) {
+                completion.submit(new Callable<Listing>() {
+                    public Listing call() throws IOException {
+                        return list(dir);
+                    }
+                });
+            }
+
+            List<File> next = new ArrayList<File>();
+            for (int i = 0; i < level.size(); i++) {
+                Listing listing = null;
+                try {
+                    listing = take(completion);
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to list source directory: " + e.getCause().getMessage());
+                }
+                found.put(listing.dir.getPath(), listing);
+                if (depth < maxDepth) {
+                    next.addAll(listing.subdirs);
+                }
+            }
+            level = next;
+        }
+
+        for (Listing listing : found.values()) {
+            listings.put(listing.dir.getPath(), listing);
+            for (SourceFile file : listing.files) {
+                String name = file.getFile().getName();
+                if (name.endsWith(CLASS_SUFFIX)) {
+                    add(classes, name.substring(0, name.length() - CLASS_SUFFIX.length()), file);
+                } else {
+                    add(triggers, name.substring(0, name.length() - TRIGGER_SUFFIX.length()), file);
+                }
+            }
+        }
+    }
+
+    private static Listing take(CompletionService<Listing> completion) throws IOException, ExecutionException {
+        try {
+            Future<Listing> future = completion.take();
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing source directories");
+        }
+    }
+
+    private void add(Map<String, SourceFile> sources, String name, SourceFile file) {
+        if (sources.containsKey(name)) {
+            numDuplicates++;
+        } else {
+            sources.put(name, file);
+        }
+    }
+
+    /**
+     * Lists the directory, or reuses the previous listing if the directory hasn't been modified since.
+     * The size and modification time of the sources are read again either way, since modifying a file
+     * doesn't change the modification time of its directory.
+     */
+    private Listing list(File dir) throws IOException {
+        long lastModified = dir.lastModified();
+        Listing cached = previous.get(dir.getPath());
+        if (cached != null && cached.lastModified == lastModified) {
+            Listing listing = new Listing(dir, lastModified);
+            listing.subdirs.addAll(cached.subdirs);
+            for (SourceFile file : cached.files) {
+                listing.files.add(new SourceFile(file.getFile(), file.getFile().length(), file.getFile().lastModified()));
+            }
+            return listing;
+        }
+
+        synchronized (this) {
+            numListed++;
+        }
+        Listing listing = new Listing(dir, lastModified);
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return listing;
+        }
+        File canonicalDir = dir.getCanonicalFile();
+        for (File child : children) {
+            String name = child.getName();
+            if (name.endsWith(CLASS_SUFFIX) || name.endsWith(TRIGGER_SUFFIX)) {
+                if (child.isFile()) {
+                    listing.files.add(new SourceFile(child, child.length(), child.lastModified()));
+                }
+            } else if (!name.startsWith(".") && child.isDirectory() && !isSymbolicLink(canonicalDir, child)) {
+                listing.subdirs.add(child);
+            }
+        }
+        Collections.sort(listing.subdirs);
+        Collections.sort(listing.files);
+        return listing;
+    }
+
+    /**
+     * Returns true if the child is a symbolic link, which could lead back to a directory above it.
+     * Java 6 can't tell links apart, but the canonical path of a link is not the canonical path of its directory
+     * followed by its name.
+     */
+    private static boolean isSymbolicLink(File canonicalDir, File child) throws IOException {
+        return !new File(canonicalDir, child.getName()).equals(child.getCanonicalFile());
+    }
+
+    /**
+     * Saves the listings of the directories to be reused next time.
+     */
+    public void save(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, FILENAME)), "UTF-8"));
+            out.write(HEADER + "\n");
+            long now = System.currentTimeMillis();
+            for (Listing listing : listings.values()) {
+                // modification times may be in seconds, so a directory modified too recently might be modified
+                // again without a change of its time, and is listed again next time
+                long lastModified = listing.lastModified > now - MTIME_GRANULARITY ? -1 : listing.lastModified;
+                out.write("D\t" + listing.dir.getPath() + "\t" + lastModified + "\n");
+                for (File subdir : listing.subdirs) {
+                    out.write("S\t" + subdir.getName() + "\n");
+                }
+                for (SourceFile file : listing.files) {
+                    out.write("F\t" + file.getFile().getName() + "\t" + file.getSize() + "\t" + file.getLastModified() + "\n");
+                }
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the source files of the classes by class name.
+     */
+    public Map<String, File> getClasses() {
+        return toFiles(classes);
+    }
+
+    /**
+     * Returns the source files of the triggers by trigger name.
+     */
+    public Map<String, File> getTriggers() {
+        return toFiles(triggers);
+    }
+
+    public SourceFile getClassSource(String name) {
+        return classes.get(name);
+    }
+
+    public SourceFile getTriggerSource(String name) {
+        return triggers.get(name);
+    }
+
+    /**
+     * Returns the number of directories listed by build(), as opposed to reused from the previous listing.
+     */
+    public int getNumListed() {
+        return numListed;
+    }
+
+    public int getNumDirectories() {
+        return listings.size();
+    }
+
+    /**
+     * Returns the number of sources ignored because a source of the same name was found before.
+     */
+    public int getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    private static Map<String, File> toFiles(Map<String, SourceFile> sources) {
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        for (Map.Entry<String, SourceFile> source : sources.entrySet()) {
+            files.put(source.getKey(), source.getValue().getFile());
+        }
+        return files;
+    }
+
+    /**
+     * The subdirectories and sources directly in a directory.
+     */
+    private static class Listing {
+        private File dir;
+        private long lastModified;
+        private List<File> subdirs = new ArrayList<File>();
+        private List<SourceFile> files = new ArrayList<SourceFile>();
+
+        Listing(File dir, long lastModified) {
+            this.dir = dir;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * A source file with its size and modification time when it was indexed.
+     */
+    public static class SourceFile implements Comparable<SourceFile> {
+        private File file;
+        private long size;
+        private long lastModified;
+
+        SourceFile(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public int compareTo(SourceFile o) {
+            return file.compareTo(o.file);
+        }
+    }
+}
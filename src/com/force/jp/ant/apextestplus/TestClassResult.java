@@ -9,19 +9,39 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import com.sforce.soap.apex.RunTestFailure;
 import com.sforce.soap.apex.RunTestSuccess;
 
+/**
+ * The outcomes of the test methods of a test class. Only the fields used by the reports are copied
+ * out of the SOAP results, into arrays of method names and times, so that the results can be
+ * garbage collected once they are added.
+ */
 public class TestClassResult {
+    private static final int INITIAL_CAPACITY = 4;
+
     private String className;
-    private List<RunTestSuccess> successes = new ArrayList<RunTestSuccess>();
-    private List<RunTestFailure> failures = new ArrayList<RunTestFailure>();
+    private int numSuccesses;
+    private String[] successNames = new String[INITIAL_CAPACITY];
+    private double[] successTimes = new double[INITIAL_CAPACITY];
+    private int numFailures;
+    private String[] failureNames = new String[INITIAL_CAPACITY];
+    private double[] failureTimes = new double[INITIAL_CAPACITY];
+    private String[] failureMessages = new String[INITIAL_CAPACITY];
+    private String[] failureStackTraces = new String[INITIAL_CAPACITY];
     private Map<String, File> debugLogs = new HashMap<String, File>();
+    private DebugLogIndex debugLogIndex = null;
+    private Map<String, Integer> flakyMethods = new HashMap<String, Integer>();
+    private boolean carriedForward = false;
     
     public TestClassResult(String className) {
         this.className = className;
@@ -31,12 +51,125 @@ public class TestClassResult {
         return className;
     }
     
+    /**
+     * Returns true if the results of this class were carried forward from a previous run instead of being run this time.
+     */
+    public boolean isCarriedForward() {
+        return carriedForward;
+    }
+
+    public void setCarriedForward(boolean carriedForward) {
+        this.carriedForward = carriedForward;
+    }
+
     public void addSuccess(RunTestSuccess success) {
-        successes.add(success);
+        addSuccess(success.getMethodName(), success.getTime());
+    }
+
+    /**
+     * Adds a success with the method name already interned by the caller.
+     */
+    public void addSuccess(String methodName, double time) {
+        if (numSuccesses == successNames.length) {
+            int capacity = numSuccesses * 2;
+            successNames = Arrays.copyOf(successNames, capacity);
+            successTimes = Arrays.copyOf(successTimes, capacity);
+        }
+        successNames[numSuccesses] = methodName;
+        successTimes[numSuccesses] = time;
+        numSuccesses++;
     }
     
     public void addFailure(RunTestFailure failure) {
-        failures.add(failure);
+        addFailure(failure.getMethodName(), failure.getTime(), failure.getMessage(), failure.getStackTrace());
+    }
+
+    /**
+     * Adds a failure with the method name already interned by the caller.
+     */
+    public void addFailure(String methodName, double time, String message, String stackTrace) {
+        if (numFailures == failureNames.length) {
+            int capacity = numFailures * 2;
+            failureNames = Arrays.copyOf(failureNames, capacity);
+            failureTimes = Arrays.copyOf(failureTimes, capacity);
+            failureMessages = Arrays.copyOf(failureMessages, capacity);
+            failureStackTraces = Arrays.copyOf(failureStackTraces, capacity);
+        }
+        failureNames[numFailures] = methodName;
+        failureTimes[numFailures] = time;
+        failureMessages[numFailures] = message;
+        failureStackTraces[numFailures] = stackTrace;
+        numFailures++;
+    }
+
+    public int getNumSuccesses() {
+        return numSuccesses;
+    }
+
+    public int getNumFailures() {
+        return numFailures;
+    }
+
+    /**
+     * Returns the time taken by each test method in milliseconds.
+     */
+    public Map<String, Double> getMethodTimes() {
+        Map<String, Double> times = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < numSuccesses; i++) {
+            times.put(successNames[i], successTimes[i]);
+        }
+        for (int i = 0; i < numFailures; i++) {
+            times.put(failureNames[i], failureTimes[i]);
+        }
+        return times;
+    }
+
+    /**
+     * Returns the names of the test methods that failed.
+     */
+    public Set<String> getFailedMethods() {
+        Set<String> failed = new HashSet<String>();
+        for (int i = 0; i < numFailures; i++) {
+            failed.add(failureNames[i]);
+        }
+        return failed;
+    }
+
+    /**
+     * Replaces the failure of a method with its success in a retry, and marks the method as flaky.
+     * Returns false if the method has no failure to replace.
+     */
+    public boolean markFlaky(RunTestSuccess success, int attempt) {
+        for (int i = 0; i < numFailures; i++) {
+            // class-level failures, e.g. in static initializers, have no method name
+            if (success.getMethodName() != null && success.getMethodName().equals(failureNames[i])) {
+                String methodName = failureNames[i];
+                removeFailure(i);
+                addSuccess(methodName, success.getTime());
+                flakyMethods.put(methodName, attempt);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeFailure(int index) {
+        int numMoved = numFailures - index - 1;
+        System.arraycopy(failureNames, index + 1, failureNames, index, numMoved);
+        System.arraycopy(failureTimes, index + 1, failureTimes, index, numMoved);
+        System.arraycopy(failureMessages, index + 1, failureMessages, index, numMoved);
+        System.arraycopy(failureStackTraces, index + 1, failureStackTraces, index, numMoved);
+        numFailures--;
+        failureNames[numFailures] = null;
+        failureMessages[numFailures] = null;
+        failureStackTraces[numFailures] = null;
+    }
+
+    /**
+     * Returns true if the method failed first and then passed in a retry.
+     */
+    public boolean isFlaky(String methodName) {
+        return flakyMethods.containsKey(methodName);
     }
 
     public File getDebugLog(String methodName) {
@@ -44,6 +177,14 @@ public class TestClassResult {
     }
 
     public void attachDebugLog(File outDir, String methodName, String debugLog) throws IOException {
+        attachDebugLog(outDir, methodName, debugLog, null);
+    }
+
+    /**
+     * Writes the debug log of the method under the directory, and has it compressed by the compressor unless it's null.
+     * The compressed log is shown by the viewer page, which the caller writes to the directory once for all the logs.
+     */
+    public void attachDebugLog(File outDir, String methodName, String debugLog, LogCompressor compressor) throws IOException {
         // prepare output directory
         File classDir = new File(outDir, className);
         if (!classDir.exists() && !classDir.mkdirs()) {
@@ -61,85 +202,138 @@ public class TestClassResult {
                 out.close();
             }
         }
-        
+
+        if (compressor != null) {
+            compressor.submit(logFile);
+            logFile = LogCompressor.getCompressedFile(logFile);
+        }
         debugLogs.put(methodName, logFile);
     }
 
+    /**
+     * Returns the writer to append debug logs of the method to.
+     * The writer is owned by the given LogSinkManager and must not be closed by the caller.
+     */
+    public Writer getDebugLogWriter(LogSinkManager sinks, File outDir, String methodName) throws IOException {
+        File logFile = new File(new File(outDir, className), methodName + ".log");
+        Writer out = sinks.getWriter(logFile);
+        debugLogs.put(methodName, sinks.getStoredFile(logFile));
+        return out;
+    }
+
+    /**
+     * Records a block of the debug log of the method as a byte range of the whole debug log, for the indexed log storage.
+     */
+    public void addDebugLogRange(DebugLogIndex index, File debugLog, String methodName, long start, long end) {
+        index.add(className, methodName, start, end);
+        debugLogIndex = index;
+        debugLogs.put(methodName, debugLog);
+    }
+
+    /**
+     * Returns the link to the debug log of the method, relative to index.html of the report,
+     * so that it works wherever the report is moved or served from.
+     */
+    private String getDebugLogLink(String methodName) {
+        File debugLog = debugLogs.get(methodName);
+        String viewer = TestResult.DEBUG_LOG_DIRNAME + "/" + DebugLogIndex.VIEWER_FILENAME;
+        if (debugLogIndex != null) {
+            return viewer + "#" + debugLogIndex.getViewerFragment(className, methodName);
+        }
+        String path = debugLog.getParentFile().getName() + "/" + debugLog.getName();
+        if (debugLog.getName().endsWith(LogCompressor.SUFFIX)) {
+            // browsers can't show gzip files by themselves, the viewer fetches it relative to its own directory
+            return viewer + "#" + path;
+        }
+        return TestResult.DEBUG_LOG_DIRNAME + "/" + path;
+    }
+
     public String toHtml() {
-        StringBuilder sb = new StringBuilder();
-        
-        sb.append("<h3>" + className + "</h3>\n");
-        sb.append("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
-        sb.append("<colgroup span=\"5\">\n");
-        sb.append("    <col width=\"15%\" />\n");
-        sb.append("    <col width=\"5%\" />\n");
-        sb.append("    <col width=\"5%\" />\n");
-        sb.append("    <col width=\"40%\" />\n");
-        sb.append("    <col width=\"30%\" />\n");
-        sb.append("    <col width=\"5%\" />\n");
-        sb.append("</colgroup>\n");
-        sb.append("<thead class=\"rich-table-thead\">\n");
-        sb.append("    <tr class=\"headerRow\">\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Method Name</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Result</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Total Time</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Message</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Stack Trace</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Debug Log</th>\n");
-        sb.append("    </tr>\n");
-        sb.append("</thead>\n");
-        sb.append("<tbody>\n");
-
-        for (RunTestSuccess success : successes) {
-            sb.append("    <tr class=\"dataRow success\"  onmouseover=\"if (window.hiOn){hiOn(this);} \" onmouseout=\"if (window.hiOff){hiOff(this);} \" onBlur=\"if (window.hiOff){hiOff(this);}\" onFocus=\"if (window.hiOn){hiOn(this);}\">\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + success.getMethodName() + "</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">SUCCESS</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + (success.getTime() / 1000) + " sec</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
+        StringWriter out = new StringWriter();
+        try {
+            toHtml(out);
+        } catch (IOException e) {
+            // never happens with StringWriter
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    public void toHtml(Writer out) throws IOException {
+        out.write("<h3>" + className + (carriedForward ? " (carried forward from the previous run)" : "") + "</h3>\n");
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<colgroup span=\"5\">\n");
+        out.write("    <col width=\"15%\" />\n");
+        out.write("    <col width=\"5%\" />\n");
+        out.write("    <col width=\"5%\" />\n");
+        out.write("    <col width=\"40%\" />\n");
+        out.write("    <col width=\"30%\" />\n");
+        out.write("    <col width=\"5%\" />\n");
+        out.write("</colgroup>\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Method Name</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Result</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Total Time</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Message</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Stack Trace</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Debug Log</th>\n");
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
+
+        for (int i = 0; i < numSuccesses; i++) {
+            String methodName = successNames[i];
+            Integer attempt = flakyMethods.get(methodName);
+            out.write("    <tr class=\"dataRow " + (attempt != null ? "flaky" : "success") + "\"  onmouseover=\"if (window.hiOn){hiOn(this);} \" onmouseout=\"if (window.hiOff){hiOff(this);} \" onBlur=\"if (window.hiOff){hiOff(this);}\" onFocus=\"if (window.hiOn){hiOn(this);}\">\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + methodName + "</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + (attempt != null ? "FLAKY (passed on retry " + attempt + ")" : "SUCCESS") + "</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + (successTimes[i] / 1000) + " sec</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
             
-            if (debugLogs.get(success.getMethodName()) != null) {
-                sb.append("        <td class=\"dataCell\" colspan=\"1\"><a href=\"" + debugLogs.get(success.getMethodName()).getAbsolutePath() + "\">View</a></td>\n");
+            if (debugLogs.get(methodName) != null) {
+                out.write("        <td class=\"dataCell\" colspan=\"1\"><a href=\"" + getDebugLogLink(methodName) + "\">View</a></td>\n");
             } else {
-                sb.append("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
+                out.write("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
             }
 
-            sb.append("    </tr>\n");
+            out.write("    </tr>\n");
         }
         
-        for (RunTestFailure failure : failures) {
-            sb.append("    <tr class=\"dataRow failure\"  onmouseover=\"if (window.hiOn){hiOn(this);} \" onmouseout=\"if (window.hiOff){hiOff(this);} \" onBlur=\"if (window.hiOff){hiOff(this);}\" onFocus=\"if (window.hiOn){hiOn(this);}\">\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + failure.getMethodName() + "</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">FAILURE</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + (failure.getTime() / 1000) + " sec</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + failure.getMessage() + "</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + failure.getStackTrace() + "</td>\n");
-
-            if (debugLogs.get(failure.getMethodName()) != null) {
-                sb.append("        <td class=\"dataCell\" colspan=\"1\"><a href=\"" + debugLogs.get(failure.getMethodName()).getAbsolutePath() + "\">View</a></td>\n");
+        for (int i = 0; i < numFailures; i++) {
+            String methodName = failureNames[i];
+            out.write("    <tr class=\"dataRow failure\"  onmouseover=\"if (window.hiOn){hiOn(this);} \" onmouseout=\"if (window.hiOff){hiOff(this);} \" onBlur=\"if (window.hiOff){hiOff(this);}\" onFocus=\"if (window.hiOn){hiOn(this);}\">\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + methodName + "</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">FAILURE</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + (failureTimes[i] / 1000) + " sec</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + failureMessages[i] + "</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + failureStackTraces[i] + "</td>\n");
+
+            if (debugLogs.get(methodName) != null) {
+                out.write("        <td class=\"dataCell\" colspan=\"1\"><a href=\"" + getDebugLogLink(methodName) + "\">View</a></td>\n");
             } else {
-                sb.append("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
+                out.write("        <td class=\"dataCell\" colspan=\"1\"></td>\n");
             }
 
-            sb.append("    </tr>\n");
+            out.write("    </tr>\n");
         }
 
-        sb.append("</tbody>\n");
-        sb.append("</table>\n");
-        return sb.toString();
+        out.write("</tbody>\n");
+        out.write("</table>\n");
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("[" + className + "]\n");
+        sb.append("[" + className + "]" + (carriedForward ? " (carried forward)" : "") + "\n");
 
-        for (RunTestSuccess success : successes) {
-            sb.append("SUCCESS: " + success.getMethodName() + " (" + (success.getTime() / 1000) + " sec)\n");
+        for (int i = 0; i < numSuccesses; i++) {
+            sb.append((isFlaky(successNames[i]) ? "FLAKY: " : "SUCCESS: ") + successNames[i] + " (" + (successTimes[i] / 1000) + " sec)\n");
         }
         
-        for (RunTestFailure failure : failures) {
-            sb.append("FAILURE: " + failure.getMethodName() + " (" + (failure.getTime() / 1000) + " sec) - " + failure.getMessage() + "\n");
+        for (int i = 0; i < numFailures; i++) {
+            sb.append("FAILURE: " + failureNames[i] + " (" + (failureTimes[i] / 1000) + " sec) - " + failureMessages[i] + "\n");
         }
 
         return sb.toString();
@@ -0,0 +1,297 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the classes and triggers each test class depends on, together with the hashes of the sources
+ * at the time the index was updated. Dependencies are collected from the debug logs of test methods,
+ * so that only the test classes affected by changed sources can be selected to run next time.
+ *
+ * Each test class keeps the hashes its dependencies had when it last ran, so that a source changed
+ * during a run the test class was not part of still selects it the next time it is a candidate.
+ * Sources are identified by keys like "class.Name" and "trigger.Name".
+ */
+public class TestImpactIndex implements DebugLogListener {
+    public static final String FILENAME = "test-impact.properties";
+
+    private static final String SOURCE_PREFIX = "source.";
+    private static final String TEST_PREFIX = "test.";
+
+    // marks a test class whose dependencies are unknown, which is always selected
+    private static final String UNKNOWN_DEPENDENCIES = "*";
+
+    private static final Pattern METHOD_ENTRY_PATTERN = Pattern.compile("\\|METHOD_ENTRY\\|\\[\\d*\\]\\|[0-9A-Za-z]{15,18}\\|([\\w.]+)\\(");
+    private static final Pattern TRIGGER_PATTERN = Pattern.compile("\\|CODE_UNIT_STARTED\\|.*\\|(\\w+) on \\w+ trigger event");
+    private static final Pattern SFDC_TRIGGER_PATTERN = Pattern.compile("\\|CODE_UNIT_STARTED\\|.*__sfdc_trigger/(\\w+)");
+
+    private Map<String, String> sourceHashes = new TreeMap<String, String>();
+    // the hashes of the dependencies of each test class when it last ran, "" for a dependency with no source
+    private Map<String, Map<String, String>> dependencies = new TreeMap<String, Map<String, String>>();
+
+    // dependencies found in the debug logs of this run
+    private Map<String, Set<String>> observed = new HashMap<String, Set<String>>();
+    private Set<String> currentDependencies = null;
+
+    public static String classKey(String className) {
+        return "class." + className;
+    }
+
+    public static String triggerKey(String triggerName) {
+        return "trigger." + triggerName;
+    }
+
+    /**
+     * Loads the index saved in the directory. Returns an empty index if nothing has been saved yet.
+     */
+    public static TestImpactIndex load(File dir) throws IOException {
+        TestImpactIndex index = new TestImpactIndex();
+        File file = new File(dir, FILENAME);
+        if (!file.exists()) {
+            return index;
+        }
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            props.load(in);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        for (String key : props.stringPropertyNames()) {
+            String value = props.getProperty(key);
+            if (key.startsWith(SOURCE_PREFIX)) {
+                index.sourceHashes.put(key.substring(SOURCE_PREFIX.length()), value);
+            } else if (key.startsWith(TEST_PREFIX)) {
+                // "dep:hash,dep:hash,..."; a dependency saved without a hash counts as changed
+                Map<String, String> deps = new TreeMap<String, String>();
+                for (String dep : value.split(",")) {
+                    int sep = dep.indexOf(':');
+                    if (sep >= 0) {
+                        deps.put(dep.substring(0, sep), dep.substring(sep + 1));
+                    } else if (dep.length() > 0) {
+                        deps.put(dep, null);
+                    }
+                }
+                index.dependencies.put(key.substring(TEST_PREFIX.length()), deps);
+            }
+        }
+        return index;
+    }
+
+    public void save(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+
+        Properties props = new Properties();
+        for (Map.Entry<String, String> hash : sourceHashes.entrySet()) {
+            props.setProperty(SOURCE_PREFIX + hash.getKey(), hash.getValue());
+        }
+        for (Map.Entry<String, Map<String, String>> deps : dependencies.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> dep : deps.getValue().entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(dep.getKey());
+                if (dep.getValue() != null) {
+                    sb.append(':').append(dep.getValue());
+                }
+            }
+            props.setProperty(TEST_PREFIX + deps.getKey(), sb.toString());
+        }
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(new File(dir, FILENAME)));
+            props.store(out, "Sources each Apex test class depends on");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Computes the hashes of the contents of the source files.
+     */
+    public static Map<String, String> hashSources(Map<String, File> srcClassMap, Map<String, File> srcTriggerMap) throws IOException {
+        Map<String, String> hashes = new HashMap<String, String>();
+        for (Map.Entry<String, File> src : srcClassMap.entrySet()) {
+            hashes.put(classKey(src.getKey()), hash(src.getValue()));
+        }
+        for (Map.Entry<String, File> src : srcTriggerMap.entrySet()) {
+            hashes.put(triggerKey(src.getKey()), hash(src.getValue()));
+        }
+        return hashes;
+    }
+
+    public boolean isEmpty() {
+        return sourceHashes.isEmpty();
+    }
+
+    public Set<String> getTestClasses() {
+        return dependencies.keySet();
+    }
+
+    /**
+     * Returns the keys of the sources that were added, removed or modified since the index was updated.
+     */
+    public Set<String> getChangedSources(Map<String, String> currentHashes) {
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, String> hash : currentHashes.entrySet()) {
+            if (!hash.getValue().equals(sourceHashes.get(hash.getKey()))) {
+                changed.add(hash.getKey());
+            }
+        }
+        for (String key : sourceHashes.keySet()) {
+            if (!currentHashes.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns true if some of the sources didn't exist when the index was updated.
+     */
+    public boolean hasNewSources(Map<String, String> currentHashes) {
+        for (String key : currentHashes.keySet()) {
+            if (!sourceHashes.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the test classes among the candidates that need to run: those not in the index
+     * and those with a dependency that changed since the test class last ran.
+     */
+    public String[] selectTests(Collection<String> candidates, Map<String, String> currentHashes) {
+        List<String> selected = new ArrayList<String>();
+        for (String testClass : candidates) {
+            Map<String, String> deps = dependencies.get(testClass);
+            if (deps == null || deps.containsKey(UNKNOWN_DEPENDENCIES) || !deps.containsKey(classKey(testClass))) {
+                selected.add(testClass);
+                continue;
+            }
+            for (Map.Entry<String, String> dep : deps.entrySet()) {
+                if (!getHash(currentHashes, dep.getKey()).equals(dep.getValue())) {
+                    selected.add(testClass);
+                    break;
+                }
+            }
+        }
+        return selected.toArray(new String[0]);
+    }
+
+    /**
+     * Replaces the dependencies of the test classes that ran with those found in their debug logs,
+     * together with their current hashes, and remembers the current hashes of all the sources.
+     * Test classes that didn't run keep the hashes of their last run.
+     * Test classes that ran without debug logs are kept in the index with unknown dependencies,
+     * so that they are always selected. Test classes that no longer exist in the sources are dropped.
+     */
+    public void update(Collection<String> ranTestClasses, Map<String, String> currentHashes) {
+        for (String testClass : ranTestClasses) {
+            Map<String, String> deps = new TreeMap<String, String>();
+            Set<String> found = observed.get(testClass);
+            if (found == null) {
+                deps.put(UNKNOWN_DEPENDENCIES, "");
+            } else {
+                for (String dep : found) {
+                    deps.put(dep, getHash(currentHashes, dep));
+                }
+                deps.put(classKey(testClass), getHash(currentHashes, classKey(testClass)));
+            }
+            dependencies.put(testClass, deps);
+        }
+        for (Iterator<String> it = dependencies.keySet().iterator(); it.hasNext();) {
+            if (!currentHashes.containsKey(classKey(it.next()))) {
+                it.remove();
+            }
+        }
+        sourceHashes.clear();
+        sourceHashes.putAll(currentHashes);
+    }
+
+    public void blockStarted(String className, String methodName) {
+        currentDependencies = observed.get(className);
+        if (currentDependencies == null) {
+            currentDependencies = new HashSet<String>();
+            observed.put(className, currentDependencies);
+        }
+    }
+
+    public void lineRead(String line) {
+        Matcher m = METHOD_ENTRY_PATTERN.matcher(line);
+        if (m.find()) {
+            // "Class.method", "ns.Class.method" or "Class.Inner.method"; which of the last two it is
+            // can't be told apart, so both the first and the second name are taken as the class
+            String[] names = m.group(1).split("\\.");
+            currentDependencies.add(classKey(names[0]));
+            if (names.length > 2) {
+                currentDependencies.add(classKey(names[1]));
+            }
+            return;
+        }
+
+        if (line.contains("|CODE_UNIT_STARTED|")) {
+            m = SFDC_TRIGGER_PATTERN.matcher(line);
+            if (m.find()) {
+                currentDependencies.add(triggerKey(m.group(1)));
+                return;
+            }
+            m = TRIGGER_PATTERN.matcher(line);
+            if (m.find()) {
+                currentDependencies.add(triggerKey(m.group(1)));
+            }
+        }
+    }
+
+    public void blockFinished() {
+        currentDependencies = null;
+    }
+
+    private static String getHash(Map<String, String> hashes, String key) {
+        String hash = hashes.get(key);
+        return hash != null ? hash : "";
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest md = ReportManifest.newDigest();
+        ReportManifest.update(md, file);
+        return ReportManifest.toHex(md.digest());
+    }
+}
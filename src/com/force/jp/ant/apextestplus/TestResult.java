@@ -5,21 +5,42 @@ package com.force.jp.ant.apextestplus;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
-import java.net.URL;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sforce.soap.apex.CodeCoverageResult;
 import com.sforce.soap.apex.CodeCoverageWarning;
@@ -28,45 +49,132 @@ import com.sforce.soap.apex.RunTestSuccess;
 import com.sforce.soap.apex.RunTestsResult;
 
 public class TestResult {
-    private final String CSS_FILENAME = "coverage.css";
+    private static final String CSS_FILENAME = "coverage.css";
+    static final String DEBUG_LOG_DIRNAME = "debuglogs";
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final int HOTTEST_LINES = 20;
+    private static final int LOG_QUEUE_CAPACITY = 256;
+
+    /** Log storage that writes the debug log of each test method to a file of its own. */
+    public static final String LOG_STORAGE_FILES = "files";
+    /** Log storage that writes debug.log only, with an index of the blocks of each test method in it. */
+    public static final String LOG_STORAGE_INDEXED = "indexed";
+    /** Log storage that writes the debug log of each test method to a file of its own compressed with gzip. */
+    public static final String LOG_STORAGE_GZIP = "gzip";
     
     private Date startTime = null;
     private double totalTime;
     private int numTestsRun;
     private int numTestsSuccess;
     private int numTestsFailures;
+    private int numTestsFlaky;
     private String coverageWarning;
     private Map<String, TestClassResult> testClassResults = new TreeMap<String, TestClassResult>();
     private Map<String, ClassCoverageResult> classCoverageResults = new TreeMap<String, ClassCoverageResult>();
     private Map<String, ClassCoverageResult> triggerCoverageResults = new TreeMap<String, ClassCoverageResult>();
     private int coverageTarget;
+    private int numResults;
+    private int numCoverageWarnings;
+    private int lastCoverageWarningRun = -1;
+    private boolean debugLogSaved = false;
+    private List<DebugLogListener> debugLogListeners = new ArrayList<DebugLogListener>();
+    private int maxOpenLogFiles = LogSinkManager.DEFAULT_MAX_OPEN_FILES;
+    private String logStorage = LOG_STORAGE_FILES;
+    private DebugLogIndex debugLogIndex = null;
+    private LogCompressor logCompressor = null;
+    private int renderThreads = 1;
+    private boolean incremental = false;
+    private boolean pipelined = false;
+    private Future<Void> coverageRendering = null;
+    private AtomicInteger numPagesRendered = new AtomicInteger();
+    private AtomicInteger numPagesUnchanged = new AtomicInteger();
+    private AtomicLong numPageBytesWritten = new AtomicLong();
+    private PhaseMetrics phaseMetrics = new PhaseMetrics(false);
+    private File styleSheetDir = null;
+    private AtomicInteger numFilesWritten = new AtomicInteger();
+    private AtomicLong numBytesWritten = new AtomicLong();
+    private String progress;
+    private Map<String, String> reportLinks = new LinkedHashMap<String, String>();
+    private Map<String, String> names = new HashMap<String, String>();
 
     public TestResult(RunTestsResult result, Date startTime, int coverageTarget) {
-        this.totalTime = result.getTotalTime();
-        this.numTestsRun = result.getNumTestsRun();
-        this.numTestsFailures = result.getNumFailures();
-        this.numTestsSuccess = numTestsRun - numTestsFailures;
+        this(startTime, coverageTarget);
+        addResult(result);
+    }
+
+    public TestResult(Date startTime, int coverageTarget) {
         this.startTime = startTime;
         this.coverageTarget = coverageTarget;
+    }
+
+    /**
+     * Adds the result of a test run. When results of several runs, e.g. of shards of test classes, are added,
+     * they are merged as if all the tests were run at once: a line is regarded as not covered
+     * only when none of the runs covered it, and the total time is that of the longest run, since the runs overlap.
+     */
+    public void addResult(RunTestsResult result) {
+        addResult(result, false);
+    }
+
+    /**
+     * Adds a result carried forward from a previous run for test classes that were not run this time.
+     * Test classes in it are marked as carried forward in the report.
+     * It doesn't count as a run when merging coverage warnings for the whole organization.
+     */
+    public void addCarriedForwardResult(RunTestsResult result) {
+        addResult(result, true);
+    }
 
+    /**
+     * Merges the result of rerunning test classes that had failures. Methods that failed before and passed
+     * in the retry are counted as successes and marked as flaky. Other outcomes of the retry, including
+     * its coverage, are ignored since they were already added with the first result.
+     * Returns the number of methods marked as flaky.
+     */
+    public int addRetryResult(RunTestsResult result, int attempt) {
+        int flaky = 0;
         for (RunTestSuccess success : result.getSuccesses()) {
-            String testClassName = success.getName();
-            TestClassResult tcr = testClassResults.get(testClassName);
-            if (tcr == null) {
-                tcr = new TestClassResult(testClassName);
-                testClassResults.put(testClassName, tcr);
+            TestClassResult tcr = testClassResults.get(success.getName());
+            if (tcr != null && !tcr.isCarriedForward() && tcr.markFlaky(success, attempt)) {
+                flaky++;
             }
-            tcr.addSuccess(success);
         }
+        this.numTestsFailures -= flaky;
+        this.numTestsSuccess += flaky;
+        this.numTestsFlaky += flaky;
+        return flaky;
+    }
 
-        for (RunTestFailure failure : result.getFailures()) {
-            String testClassName = failure.getName();
-            TestClassResult tcr = testClassResults.get(testClassName);
-            if (tcr == null) {
-                tcr = new TestClassResult(testClassName);
-                testClassResults.put(testClassName, tcr);
+    /**
+     * Returns the names of the methods that failed in this run by test class, leaving out carried forward classes.
+     */
+    public Map<String, Set<String>> getFailedMethods() {
+        Map<String, Set<String>> failed = new TreeMap<String, Set<String>>();
+        for (TestClassResult tcr : testClassResults.values()) {
+            if (!tcr.isCarriedForward() && !tcr.getFailedMethods().isEmpty()) {
+                failed.put(tcr.getClassName(), tcr.getFailedMethods());
             }
-            tcr.addFailure(failure);
+        }
+        return failed;
+    }
+
+    private void addResult(RunTestsResult result, boolean carriedForward) {
+        this.numTestsRun += result.getNumTestsRun();
+        this.numTestsFailures += result.getNumFailures();
+        this.numTestsSuccess = numTestsRun - numTestsFailures;
+        if (!carriedForward) {
+            this.totalTime = Math.max(totalTime, result.getTotalTime());
+            this.numResults++;
+        }
+
+        // only the fields used by the reports are copied, so that the result can be garbage collected
+        for (RunTestSuccess success : result.getSuccesses()) {
+            getTestClassResult(success.getName(), carriedForward).addSuccess(intern(success.getMethodName()), success.getTime());
+        }
+
+        for (RunTestFailure failure : result.getFailures()) {
+            getTestClassResult(failure.getName(), carriedForward).addFailure(intern(failure.getMethodName()), failure.getTime(),
+                    failure.getMessage(), failure.getStackTrace());
         }
         
         for (CodeCoverageResult coverage : result.getCodeCoverage()) {
@@ -95,7 +203,7 @@ public class TestResult {
             
             ClassCoverageResult ccr = targetCoverageResults.get(className);
             if (ccr == null) {
-                ccr = new ClassCoverageResult(className);
+                ccr = new ClassCoverageResult(intern(className));
                 targetCoverageResults.put(className, ccr);
             }
             ccr.addCoverageResult(coverage);
@@ -112,6 +220,10 @@ public class TestResult {
             
             if (className == null) {
                 this.coverageWarning = warning.getMessage();
+                if (lastCoverageWarningRun != numResults) {
+                    this.numCoverageWarnings++;
+                    this.lastCoverageWarningRun = numResults;
+                }
             } else {
                 // When a class and a trigger have the same name,
                 // we cannot determine for which one the coverage warning is generated.
@@ -126,124 +238,301 @@ public class TestResult {
                         throw new NullPointerException("Trigger nor class not found: " + className);
                     }
                 }
-                ccr.setCoverageWarning(warning);
+                ccr.setCoverageWarning(warning, numResults);
             }
         }
     }
 
+    private TestClassResult getTestClassResult(String testClassName, boolean carriedForward) {
+        TestClassResult tcr = testClassResults.get(testClassName);
+        if (tcr == null) {
+            tcr = new TestClassResult(intern(testClassName));
+            tcr.setCarriedForward(carriedForward);
+            testClassResults.put(tcr.getClassName(), tcr);
+        }
+        return tcr;
+    }
+
+    /**
+     * Returns the same instance for equal names, since every method of every run
+     * repeats its class name and the same methods come back in retries and carried forward results.
+     * A map is used instead of String#intern() not to fill up the permanent generation.
+     */
+    private String intern(String name) {
+        if (name == null) {
+            return null;
+        }
+        String interned = names.get(name);
+        if (interned == null) {
+            names.put(name, name);
+            interned = name;
+        }
+        return interned;
+    }
+
     public void separateDebugLog(File outDir, String debugLog) throws IOException {
-        File debugLogDir = new File(outDir, "debuglogs");
+        separateDebugLog(outDir, new StringReader(debugLog));
+    }
+
+    public void separateDebugLog(File outDir, InputStream debugLog) throws IOException {
+        separateDebugLog(outDir, new InputStreamReader(debugLog, "UTF-8"));
+    }
+
+    public void separateDebugLog(File outDir, Reader debugLog) throws IOException {
+        File debugLogDir = new File(outDir, DEBUG_LOG_DIRNAME);
         if (!debugLogDir.exists() && !debugLogDir.mkdirs()) {
             throw new IOException("Failed to create diretory: " + debugLogDir.getAbsolutePath());
         }
         
-        // save the whole debug log
+        // save the whole debug log while splitting it by class and method
+        File debugLogFile = new File(debugLogDir, DebugLogIndex.LOG_FILENAME);
         PrintWriter out = null;
+        LogSinkManager sinks = new LogSinkManager(maxOpenLogFiles);
+        boolean split = false;
         try {
-            out = new PrintWriter(new File(debugLogDir, "debug.log"), "UTF-8");
-            out.println(debugLog);
+            // debug logs of the second and later runs are appended to the first one
+            long offset = debugLogSaved ? debugLogFile.length() : 0;
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(debugLogFile, debugLogSaved), "UTF-8")));
+            debugLogSaved = true;
+            DebugLogSplitter splitter = new DebugLogSplitter(debugLogDir, testClassResults, sinks);
+            if (LOG_STORAGE_INDEXED.equals(logStorage)) {
+                if (debugLogIndex == null) {
+                    debugLogIndex = new DebugLogIndex();
+                }
+                splitter.setIndex(debugLogIndex, debugLogFile, offset);
+            } else if (LOG_STORAGE_GZIP.equals(logStorage)) {
+                // compressed in the background while the next debug log is split
+                if (logCompressor == null) {
+                    logCompressor = new LogCompressor();
+                }
+                sinks.setCompressor(logCompressor);
+            }
+            if (pipelined && !LOG_STORAGE_INDEXED.equals(logStorage)) {
+                sinks.startWriterThread(LOG_QUEUE_CAPACITY);
+            }
+            for (DebugLogListener listener : debugLogListeners) {
+                splitter.addListener(listener);
+            }
+            splitter.split(debugLog, out);
+            out.println();
+            split = true;
         } finally {
             if (out != null) {
                 out.close();
             }
+            try {
+                sinks.close();
+            } catch (IOException e) {
+                if (split) {
+                    throw e;
+                }
+                // don't hide the exception that stopped splitting
+                System.out.println("WARNING: Failed to close debug log files: " + e.getMessage());
+            } finally {
+                numFilesWritten.addAndGet(logCompressor != null ? 1 : sinks.getNumFiles() + 1);
+            }
+        }
+
+        if (logCompressor != null) {
+            File viewer = copyResource(DebugLogIndex.VIEWER_FILENAME, debugLogDir);
+            if (viewer != null) {
+                countWritten(viewer);
+            }
+        }
+        if (debugLogIndex != null) {
+            debugLogIndex.save(debugLogDir);
+            countWritten(new File(debugLogDir, DebugLogIndex.INDEX_FILENAME));
+            File viewer = copyResource(DebugLogIndex.VIEWER_FILENAME, debugLogDir);
+            if (viewer != null) {
+                countWritten(viewer);
+            }
         }
+    }
+
+    /**
+     * Waits until the debug logs split so far are compressed, when they are.
+     * Called before the report is written so that its links point to the compressed logs.
+     */
+    public void finishDebugLogs() throws IOException {
+        if (logCompressor == null) {
+            return;
+        }
+        try {
+            logCompressor.finish();
+        } finally {
+            numFilesWritten.addAndGet(logCompressor.getNumFiles());
+            numBytesWritten.addAndGet(logCompressor.getNumBytes());
+            logCompressor = null;
+        }
+    }
+
+    /**
+     * Adds a listener that receives the lines of debug logs while they are split by test method.
+     */
+    public void addDebugLogListener(DebugLogListener listener) {
+        debugLogListeners.add(listener);
+    }
+
+    public String getLogStorage() {
+        return logStorage;
+    }
+
+    /**
+     * Sets how the debug logs of test methods are stored: LOG_STORAGE_FILES, LOG_STORAGE_INDEXED or LOG_STORAGE_GZIP.
+     */
+    public void setLogStorage(String logStorage) {
+        if (!LOG_STORAGE_FILES.equals(logStorage) && !LOG_STORAGE_INDEXED.equals(logStorage) && !LOG_STORAGE_GZIP.equals(logStorage)) {
+            throw new IllegalArgumentException("Unsupported log storage: " + logStorage);
+        }
+        this.logStorage = logStorage;
+    }
+
+    public int getMaxOpenLogFiles() {
+        return maxOpenLogFiles;
+    }
+
+    public void setMaxOpenLogFiles(int maxOpenLogFiles) {
+        this.maxOpenLogFiles = maxOpenLogFiles;
+    }
+
+    public void visualizeCoverageResults(File outDir, Map<String, File> srcClassMap, Map<String, File> srcTriggerMap) throws IOException {
+        finishDebugLogs();
 
-        BufferedReader in = null;
-        String className = null;
-        String methodName = null;
-        String prevClassName = null;
-        String prevMethodName = null;
-        boolean foundNames = false;
-        Pattern p = Pattern.compile("\\|CODE_UNIT_STARTED\\|.+\\|(.+)\\.(.+)$");
-        StringBuilder sb = null;
-        String line = null;
+        if (coverageRendering != null) {
+            finishCoverageRendering();
+        } else {
+            renderCoverageResults(outDir, srcClassMap, srcTriggerMap);
+        }
         
-        // split debug log by class and method
-        in = new BufferedReader(new StringReader(debugLog));
-
-        while ((line = in.readLine()) != null) {
-            if (line.endsWith("|EXECUTION_STARTED")) {
-                // found the beginning of a test method execution
-                sb = new StringBuilder();
-            }
-
-            if (sb != null) {
-                // try to find 'CODE_UNIT_STARTED' line to get class name and method name
-                if (!foundNames) {
-                    // this line contains 'CODE_UNIT_STARTED'?
-                    Matcher m = p.matcher(line);
-                    if (m.find()) {
-                        foundNames = true;
-                        className = m.group(1);
-                        methodName = m.group(2);
-                    }
+        // create index page and style sheet
+        writeIndex(outDir);
+    }
+
+    /**
+     * Starts rendering the coverage pages in the background, so that it overlaps with splitting debug logs
+     * and the rest of the task. No more results may be added afterwards, except retry results.
+     * visualizeCoverageResults() then waits for the pages before it writes the index page.
+     */
+    public void startCoverageRendering(final File outDir, final Map<String, File> srcClassMap, final Map<String, File> srcTriggerMap) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            coverageRendering = executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    renderCoverageResults(outDir, srcClassMap, srcTriggerMap);
+                    return null;
                 }
+            });
+        } finally {
+            // the thread ends once the pages are rendered
+            executor.shutdown();
+        }
+    }
 
-                sb.append(line);
-                sb.append('\n');
-                
-                if (line.endsWith("|EXECUTION_FINISHED")) {
-                    // found the end of a test method execution
-                    TestClassResult classResult = testClassResults.get(className);
-                    if (classResult != null) {
-                        classResult.attachDebugLog(debugLogDir, methodName, sb.toString());
-                        prevClassName = className;
-                        prevMethodName = methodName;
-                    } else {
-                    	// this block of debug logs may be generated by asynchronous calls, such as @future or Batch Apex
-                    	// let's append it to that for previous Apex test call
-                        classResult = testClassResults.get(prevClassName);
-                        if (classResult != null) {
-                            classResult.attachDebugLog(debugLogDir, prevMethodName, sb.toString());
-                        }
-                    }
+    private void finishCoverageRendering() throws IOException {
+        try {
+            coverageRendering.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering coverage results");
+        } finally {
+            coverageRendering = null;
+        }
+    }
+
+    private void renderCoverageResults(File outDir, Map<String, File> srcClassMap, Map<String, File> srcTriggerMap) throws IOException {
+        // measured on its own, since it may run in the background while other phases are measured
+        PhaseMetrics.Measurement phase = phaseMetrics.start("renderCoverage");
+        int pagesRendered = numPagesRendered.get();
+        long pageBytesWritten = numPageBytesWritten.get();
+        try {
+            // in incremental mode, pages whose inputs are the same as last time are left as they are
+            ReportManifest manifest = incremental ? ReportManifest.load(outDir) : null;
+            if (manifest == null) {
+                ReportManifest.delete(outDir);
+            }
 
-                    foundNames = false;
-                    className = null;
-                    methodName = null;
-                    sb = null;
+            List<CoveragePage> pages = new ArrayList<CoveragePage>();
+            pages.addAll(genCoverageResultsHtml(outDir, "classes", classCoverageResults, srcClassMap, manifest));
+            pages.addAll(genCoverageResultsHtml(outDir, "triggers", triggerCoverageResults, srcTriggerMap, manifest));
+            try {
+                renderCoveragePages(pages);
+            } finally {
+                if (manifest != null) {
+                    manifest.save();
                 }
             }
+        } finally {
+            phase.addFiles(numPagesRendered.get() - pagesRendered);
+            phase.addBytes(numPageBytesWritten.get() - pageBytesWritten);
+            phase.end();
         }
     }
 
-    public void visualizeCoverageResults(File outDir, Map<String, File> srcClassMap, Map<String, File> srcTriggerMap) throws IOException {
+    /**
+     * Writes the index page only, without the coverage pages.
+     * Used to show partial results while tests are still running.
+     */
+    public void writeIndex(File outDir) throws IOException {
         deployStyleSheet(outDir);
-        genCoverageResultsHtml(new File(outDir, "classes"), classCoverageResults, srcClassMap);
-        genCoverageResultsHtml(new File(outDir, "triggers"), triggerCoverageResults, srcTriggerMap);
-        
-        // create index page
-        PrintStream out = null;
+
+        Writer out = null;
         try {
-            out = new PrintStream(new File(outDir, "index.html"), "UTF-8");
-            out.println(toHtml());
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, "index.html")), "UTF-8"), 64 * 1024);
+            toHtml(out);
+            out.write(LINE_SEPARATOR);
         } finally {
             if (out != null) {
                 out.close();
             }
         }
+        countWritten(new File(outDir, "index.html"));
     }
 
     private void deployStyleSheet(File outDir) throws IOException {
-        BufferedInputStream in = null;
-        BufferedOutputStream out = null;
+        // once per report, since the index page is written over and over in progressive mode
+        if (outDir.equals(styleSheetDir)) {
+            return;
+        }
+        File file = copyStyleSheet(outDir);
+        styleSheetDir = outDir;
+        if (file != null) {
+            countWritten(file);
+        }
+    }
+
+    /**
+     * Writes the style sheet of the reports to the directory, unless it's already up to date.
+     * Returns the file written, or null if it was up to date.
+     */
+    public static File copyStyleSheet(File outDir) throws IOException {
+        return copyResource(CSS_FILENAME, outDir);
+    }
+
+    /**
+     * Writes a resource of the reports, such as the style sheet, to the directory unless it's already up to date.
+     * Returns the file written, or null if it was up to date.
+     */
+    static File copyResource(String name, File outDir) throws IOException {
+        byte[] content = readFully(TestResult.class.getResource(name).openStream());
+        File file = new File(outDir, name);
 
+        // leave the resource as it is when it's already up to date, e.g. in incremental mode
+        if (file.exists() && file.length() == content.length && Arrays.equals(content, readFile(file))) {
+            return null;
+        }
+
+        BufferedOutputStream out = null;
         try {
-            URL url = this.getClass().getResource(CSS_FILENAME);
-            in = new BufferedInputStream(url.openStream());
-            out = new BufferedOutputStream(new FileOutputStream(new File(outDir, CSS_FILENAME)));
-            int b;
-            while ((b = in.read()) >= 0) {
-                out.write(b);
-            }
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            out.write(content);
         } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                }
-            }
-            
             if (out != null) {
                 try {
                     out.close();
@@ -251,24 +540,141 @@ public class TestResult {
                 }
             }
         }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return readFully(new FileInputStream(file));
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(stream);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+        return out.toByteArray();
     }
     
-    private void genCoverageResultsHtml(File outDir, Map<String, ClassCoverageResult> coverageResults, Map<String, File> sourceMap) throws IOException {
+    private List<CoveragePage> genCoverageResultsHtml(File baseDir, String dirName, Map<String, ClassCoverageResult> coverageResults, Map<String, File> sourceMap, ReportManifest manifest) throws IOException {
+        File outDir = new File(baseDir, dirName);
         if (!outDir.exists() && !outDir.mkdirs()) {
             throw new IOException("Failed to create diretory: " + outDir.getAbsolutePath());
         }
         
+        List<CoveragePage> pages = new ArrayList<CoveragePage>();
         for (String programName : coverageResults.keySet()) {
             ClassCoverageResult ccr = coverageResults.get(programName);
             File src = sourceMap.get(programName);
-            if (!src.exists()) {
-                throw new IOException("Source file is not found: " + programName);
-            }
             File result = new File(outDir, programName + ".html");
-            ccr.toHtml(src, result);
+            CoveragePage page = new CoveragePage(programName, ccr, src, result);
+            page.setManifest(manifest, dirName + "/" + programName + ".html");
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * Renders the coverage pages, in parallel when renderThreads is more than 1.
+     * Pages are rendered independently of each other, so a failure of one page doesn't stop the others.
+     * All the failures are reported together after every page is processed.
+     */
+    private void renderCoveragePages(List<CoveragePage> pages) throws IOException {
+        // keyed by the path of the page, since a class and a trigger can have the same name
+        Map<String, Throwable> errors = new LinkedHashMap<String, Throwable>();
+
+        if (renderThreads <= 1 || pages.size() <= 1) {
+            for (CoveragePage page : pages) {
+                try {
+                    page.call();
+                } catch (Exception e) {
+                    errors.put(page.getPath(), e);
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(renderThreads, pages.size()));
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (CoveragePage page : pages) {
+                    futures.add(executor.submit(page));
+                }
+                
+                for (int i = 0; i < pages.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        errors.put(pages.get(i).getPath(), e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while rendering coverage results");
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Failed to generate " + errors.size() + " coverage result(s):");
+            for (Map.Entry<String, Throwable> error : errors.entrySet()) {
+                sb.append("\n  " + error.getKey() + ": " + error.getValue().getMessage());
+            }
+            IOException e = new IOException(sb.toString());
+            e.initCause(errors.values().iterator().next());
+            throw e;
         }
     }
     
+    public int getNumTestsRun() {
+        return numTestsRun;
+    }
+
+    public int getNumTestsFailures() {
+        return numTestsFailures;
+    }
+
+    public int getNumTestsFlaky() {
+        return numTestsFlaky;
+    }
+
+    public Collection<TestClassResult> getTestClassResults() {
+        return testClassResults.values();
+    }
+
+    public Collection<ClassCoverageResult> getClassCoverageResults() {
+        return classCoverageResults.values();
+    }
+
+    public Collection<ClassCoverageResult> getTriggerCoverageResults() {
+        return triggerCoverageResults.values();
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public double getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * Returns the coverage warning for the whole organization.
+     * When results of several runs are merged, the warning is reported only when every run reported it.
+     */
+    public String getCoverageWarning() {
+        return numCoverageWarnings >= numResults ? coverageWarning : null;
+    }
+
     public BigDecimal getTotalPctCoverage() {
         double numLocations = 0;
         double numLocationsCovered = 0;
@@ -291,136 +697,338 @@ public class TestResult {
     }
 
     public String toHtml() {
-        StringBuilder sb = new StringBuilder();
+        StringWriter out = new StringWriter();
+        try {
+            toHtml(out);
+        } catch (IOException e) {
+            // never happens with StringWriter
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    public void toHtml(Writer out) throws IOException {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
-        sb.append("<html>\n");
-        sb.append("<head>\n");
-        sb.append("<title>Test Results</title>\n");
-        sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">");
-        sb.append("<link href=\"coverage.css\" rel=\"stylesheet\" type=\"text/css\" />\n");
-        sb.append("</head>\n");
-        sb.append("<body>\n");
-        sb.append("<h1>Test Results</h1>\n");
+        out.write("<html>\n");
+        out.write("<head>\n");
+        out.write("<title>Test Results</title>\n");
+        out.write("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">");
+        out.write("<link href=\"coverage.css\" rel=\"stylesheet\" type=\"text/css\" />\n");
+        out.write("</head>\n");
+        out.write("<body>\n");
+        out.write("<h1>Test Results</h1>\n");
         
-        sb.append("<h2>Summary</h2>\n");
-        sb.append("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
-        sb.append("<tr>\n");
-        sb.append("    <td class=\"labelCol\">Start Time</td>\n");
-        sb.append("    <td class=\"data2Col\">" + sdf.format(startTime) + "</td>\n");
-        sb.append("</tr>\n");
-        sb.append("<tr>\n");
-        sb.append("    <td class=\"labelCol\">Total Time</td>\n");
-        sb.append("    <td class=\"data2Col\">" + (totalTime / 1000) + " sec</td>\n");
-        sb.append("</tr>\n");
-        sb.append("<tr>\n");
-        sb.append("    <td class=\"labelCol\">Tests Run</td>\n");
-        sb.append("    <td class=\"data2Col\">" + numTestsRun + "</td>\n");
-        sb.append("</tr>\n");
-        sb.append("<tr>\n");
-        sb.append("    <td class=\"labelCol\">Tests Failures</td>\n");
+        out.write("<h2>Summary</h2>\n");
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<tr>\n");
+        out.write("    <td class=\"labelCol\">Start Time</td>\n");
+        out.write("    <td class=\"data2Col\">" + sdf.format(startTime) + "</td>\n");
+        out.write("</tr>\n");
+        if (progress != null) {
+            out.write("<tr>\n");
+            out.write("    <td class=\"labelCol\">Progress</td>\n");
+            out.write("    <td class=\"data2Col\">" + progress + "</td>\n");
+            out.write("</tr>\n");
+        }
+        out.write("<tr>\n");
+        out.write("    <td class=\"labelCol\">Total Time</td>\n");
+        out.write("    <td class=\"data2Col\">" + (totalTime / 1000) + " sec</td>\n");
+        out.write("</tr>\n");
+        out.write("<tr>\n");
+        out.write("    <td class=\"labelCol\">Tests Run</td>\n");
+        out.write("    <td class=\"data2Col\">" + numTestsRun + "</td>\n");
+        out.write("</tr>\n");
+        out.write("<tr>\n");
+        out.write("    <td class=\"labelCol\">Tests Failures</td>\n");
         
         if (numTestsFailures == 0) {
-            sb.append("    <td class=\"data2Col success\">" + numTestsFailures + "</td>\n");
+            out.write("    <td class=\"data2Col success\">" + numTestsFailures + "</td>\n");
         } else {
-            sb.append("    <td class=\"data2Col failure\">" + numTestsFailures + "</td>\n");
+            out.write("    <td class=\"data2Col failure\">" + numTestsFailures + "</td>\n");
         }
         
-        sb.append("</tr>\n");
+        out.write("</tr>\n");
+
+        if (numTestsFlaky > 0) {
+            out.write("<tr>\n");
+            out.write("    <td class=\"labelCol\">Flaky Tests</td>\n");
+            out.write("    <td class=\"data2Col flaky\">" + numTestsFlaky + "</td>\n");
+            out.write("</tr>\n");
+        }
         
-        sb.append("<tr>\n");
-        sb.append("    <td class=\"labelCol\">Code Coverage Total</td>\n");
+        out.write("<tr>\n");
+        out.write("    <td class=\"labelCol\">Code Coverage Total</td>\n");
         if (getTotalPctCoverage().doubleValue() >= coverageTarget) {
-            sb.append("    <td class=\"data2Col success\">" + getTotalPctCoverage() + "%</td>\n");
+            out.write("    <td class=\"data2Col success\">" + getTotalPctCoverage() + "%</td>\n");
         } else {
-            sb.append("    <td class=\"data2Col failure\">" + getTotalPctCoverage() + "%</td>\n");
+            out.write("    <td class=\"data2Col failure\">" + getTotalPctCoverage() + "%</td>\n");
         }
-        sb.append("</tr>\n");
+        out.write("</tr>\n");
 
-        if (coverageWarning != null) {
-            sb.append("<tr>\n");
-            sb.append("    <td class=\"labelCol\">Test Coverage Warning</td>\n");
-            sb.append("    <td class=\"data2Col\">" + coverageWarning + "</td>\n");
-            sb.append("</tr>\n");
+        if (getCoverageWarning() != null) {
+            out.write("<tr>\n");
+            out.write("    <td class=\"labelCol\">Test Coverage Warning</td>\n");
+            out.write("    <td class=\"data2Col\">" + getCoverageWarning() + "</td>\n");
+            out.write("</tr>\n");
+        }
+        
+        if (!reportLinks.isEmpty()) {
+            out.write("<tr>\n");
+            out.write("    <td class=\"labelCol\">Reports</td>\n");
+            out.write("    <td class=\"data2Col\">");
+            boolean first = true;
+            for (Map.Entry<String, String> link : reportLinks.entrySet()) {
+                out.write((first ? "" : " | ") + "<a href=\"" + link.getValue() + "\">" + link.getKey() + "</a>");
+                first = false;
+            }
+            out.write("</td>\n");
+            out.write("</tr>\n");
         }
         
-        sb.append("</table>\n");
+        out.write("</table>\n");
 
-        sb.append("<h2>Test Results</h2>\n");
+        out.write("<h2>Test Results</h2>\n");
         for (TestClassResult tcr : testClassResults.values()) {
-            sb.append(tcr.toHtml());
-        }
-
-        sb.append("<h2>Code Coverage</h2>\n");
-        sb.append("<h3>Apex Classes</h3>\n");
-        sb.append("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
-        sb.append("<colgroup span=\"2\">\n");
-        sb.append("    <col width=\"20%\" />\n");
-        sb.append("    <col width=\"20%\" />\n");
-        sb.append("    <col width=\"60%\" />\n");
-        sb.append("</colgroup>\n");
-        sb.append("<thead class=\"rich-table-thead\">\n");
-        sb.append("    <tr class=\"headerRow\">\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Class Name</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Coverage</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Warning</th>\n");
-        sb.append("    </tr>\n");
-        sb.append("</thead>\n");
-        sb.append("<tbody>\n");
+            tcr.toHtml(out);
+        }
+
+        out.write("<h2>Code Coverage</h2>\n");
+        out.write("<h3>Apex Classes</h3>\n");
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<colgroup span=\"2\">\n");
+        out.write("    <col width=\"20%\" />\n");
+        out.write("    <col width=\"20%\" />\n");
+        out.write("    <col width=\"60%\" />\n");
+        out.write("</colgroup>\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Class Name</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Coverage</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Warning</th>\n");
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
 
         for (ClassCoverageResult ccr : classCoverageResults.values()) {
             BigDecimal pctCoverage = ccr.getPctCoverage();
             if (pctCoverage != null && pctCoverage.doubleValue() >= coverageTarget) {
-                sb.append("    <tr class=\"dataRow success\">\n");
+                out.write("    <tr class=\"dataRow success\">\n");
             } else if (ccr.getCoverageWarning() == null) {
-                sb.append("    <tr class=\"dataRow\">\n");
+                out.write("    <tr class=\"dataRow\">\n");
             } else {
-                sb.append("    <tr class=\"dataRow failure\">\n");
-            }
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + ccr.getClassName() + "</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\"><a href=\"classes/" + ccr.getClassName() + ".html\">" + (pctCoverage != null ? pctCoverage : " - ") + "% (" + ccr.getNumLocationsCovered() + "/" + ccr.getNumLocations() + ")</a></td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + (ccr.getCoverageWarning() == null ? "" : ccr.getCoverageWarning()) + "</td>\n");
-            sb.append("    </tr>\n");
-        }
-
-        sb.append("</tbody>\n");
-        sb.append("</table>\n");
-
-        sb.append("<h3>Apex Triggers</h3>\n");
-        sb.append("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
-        sb.append("<colgroup span=\"2\">\n");
-        sb.append("    <col width=\"20%\" />\n");
-        sb.append("    <col width=\"20%\" />\n");
-        sb.append("    <col width=\"60%\" />\n");
-        sb.append("</colgroup>\n");
-        sb.append("<thead class=\"rich-table-thead\">\n");
-        sb.append("    <tr class=\"headerRow\">\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Trigger Name</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Coverage</th>\n");
-        sb.append("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Warning</th>\n");
-        sb.append("    </tr>\n");
-        sb.append("</thead>\n");
-        sb.append("<tbody>\n");
+                out.write("    <tr class=\"dataRow failure\">\n");
+            }
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + ccr.getClassName() + "</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\"><a href=\"classes/" + ccr.getClassName() + ".html\">" + (pctCoverage != null ? pctCoverage : " - ") + "% (" + ccr.getNumLocationsCovered() + "/" + ccr.getNumLocations() + ")</a></td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + (ccr.getCoverageWarning() == null ? "" : ccr.getCoverageWarning()) + "</td>\n");
+            out.write("    </tr>\n");
+        }
+
+        out.write("</tbody>\n");
+        out.write("</table>\n");
+
+        out.write("<h3>Apex Triggers</h3>\n");
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<colgroup span=\"2\">\n");
+        out.write("    <col width=\"20%\" />\n");
+        out.write("    <col width=\"20%\" />\n");
+        out.write("    <col width=\"60%\" />\n");
+        out.write("</colgroup>\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Trigger Name</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Coverage</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Warning</th>\n");
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
 
         for (ClassCoverageResult ccr : triggerCoverageResults.values()) {
             BigDecimal pctCoverage = ccr.getPctCoverage();
             if (pctCoverage != null && pctCoverage.doubleValue() >= coverageTarget) {
-                sb.append("    <tr class=\"dataRow success\">\n");
+                out.write("    <tr class=\"dataRow success\">\n");
             } else if (ccr.getCoverageWarning() == null) {
-                sb.append("    <tr class=\"dataRow\">\n");
+                out.write("    <tr class=\"dataRow\">\n");
             } else {
-                sb.append("    <tr class=\"dataRow failure\">\n");
+                out.write("    <tr class=\"dataRow failure\">\n");
             }
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + ccr.getClassName() + "</td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\"><a href=\"triggers/" + ccr.getClassName() + ".html\">" + (pctCoverage != null ? pctCoverage : " - ") + "% (" + ccr.getNumLocationsCovered() + "/" + ccr.getNumLocations() + ")</a></td>\n");
-            sb.append("        <td class=\"dataCell\" colspan=\"1\">" + (ccr.getCoverageWarning() == null ? "" : ccr.getCoverageWarning()) + "</td>\n");
-            sb.append("    </tr>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + ccr.getClassName() + "</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\"><a href=\"triggers/" + ccr.getClassName() + ".html\">" + (pctCoverage != null ? pctCoverage : " - ") + "% (" + ccr.getNumLocationsCovered() + "/" + ccr.getNumLocations() + ")</a></td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + (ccr.getCoverageWarning() == null ? "" : ccr.getCoverageWarning()) + "</td>\n");
+            out.write("    </tr>\n");
         }
 
-        sb.append("</tbody>\n");
-        sb.append("</table>\n");
+        out.write("</tbody>\n");
+        out.write("</table>\n");
 
-        return sb.toString();
+        writeHottestLines(out);
+    }
+
+    /**
+     * Writes the lines that took the longest time across the organization, and the hottest line of each class and trigger.
+     * Nothing is written when no execution counts or times were returned.
+     */
+    private void writeHottestLines(Writer out) throws IOException {
+        List<HotLine> hotLines = new ArrayList<HotLine>();
+        List<HotLine> hottestOfEach = new ArrayList<HotLine>();
+        for (ClassCoverageResult ccr : classCoverageResults.values()) {
+            collectHotLines(ccr, "classes/", hotLines, hottestOfEach);
+        }
+        for (ClassCoverageResult ccr : triggerCoverageResults.values()) {
+            collectHotLines(ccr, "triggers/", hotLines, hottestOfEach);
+        }
+        if (hotLines.isEmpty()) {
+            return;
+        }
+
+        Comparator<HotLine> hottestFirst = new Comparator<HotLine>() {
+            public int compare(HotLine h1, HotLine h2) {
+                return ClassCoverageResult.HOTTEST_FIRST.compare(h1.location, h2.location);
+            }
+        };
+        Collections.sort(hotLines, hottestFirst);
+        Collections.sort(hottestOfEach, new Comparator<HotLine>() {
+            public int compare(HotLine h1, HotLine h2) {
+                return Double.compare(h2.coverage.getTotalTime(), h1.coverage.getTotalTime());
+            }
+        });
+
+        out.write("<h2>Hottest Lines</h2>\n");
+        out.write("<h3>Organization</h3>\n");
+        writeHotLineTable(out, hotLines.subList(0, Math.min(hotLines.size(), HOTTEST_LINES)), false);
+        out.write("<h3>Apex Classes and Triggers</h3>\n");
+        writeHotLineTable(out, hottestOfEach, true);
+    }
+
+    private void collectHotLines(ClassCoverageResult ccr, String dir, List<HotLine> hotLines, List<HotLine> hottestOfEach) {
+        List<ClassCoverageResult.CodeLocationStatus> lines = ccr.getHottestLines(HOTTEST_LINES);
+        for (ClassCoverageResult.CodeLocationStatus location : lines) {
+            hotLines.add(new HotLine(ccr, dir, location));
+        }
+        if (!lines.isEmpty()) {
+            hottestOfEach.add(new HotLine(ccr, dir, lines.get(0)));
+        }
+    }
+
+    private void writeHotLineTable(Writer out, List<HotLine> hotLines, boolean withTotal) throws IOException {
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Name</th>\n");
+        if (withTotal) {
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Total Time</th>\n");
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Hottest Line</th>\n");
+        } else {
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Line</th>\n");
+        }
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Executions</th>\n");
+        out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">Time</th>\n");
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
+        for (HotLine hot : hotLines) {
+            String name = hot.coverage.getClassName();
+            int line = hot.location.getLine();
+            out.write("    <tr class=\"dataRow\">\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + name + "</td>\n");
+            if (withTotal) {
+                out.write("        <td class=\"dataCell\" colspan=\"1\">" + ClassCoverageResult.formatTime(hot.coverage.getTotalTime()) + "</td>\n");
+            }
+            out.write("        <td class=\"dataCell\" colspan=\"1\"><a href=\"" + hot.dir + name + ".html#L" + line + "\">" + line + "</a></td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + hot.location.getNumExecutions() + "</td>\n");
+            out.write("        <td class=\"dataCell\" colspan=\"1\">" + ClassCoverageResult.formatTime(hot.location.getTime()) + "</td>\n");
+            out.write("    </tr>\n");
+        }
+        out.write("</tbody>\n");
+        out.write("</table>\n");
+    }
+
+    /**
+     * Adds a link to another report, such as a profile, to the summary of the index page.
+     * href is relative to the output directory.
+     */
+    public void addReportLink(String title, String href) {
+        reportLinks.put(title, href);
+    }
+
+    public String getProgress() {
+        return progress;
+    }
+
+    /**
+     * Sets a message shown in the summary of the report while tests are still running, or null when they are done.
+     */
+    public void setProgress(String progress) {
+        this.progress = progress;
+    }
+
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    public void setRenderThreads(int renderThreads) {
+        this.renderThreads = renderThreads;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Makes visualizeCoverageResults() render only the coverage pages whose source or coverage changed
+     * since the last time they were rendered to the same output directory.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean getPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Makes separateDebugLog() write the log files of test methods on a writer thread,
+     * while the debug log is parsed on the calling thread.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Measures the rendering of coverage pages as the renderCoverage phase of the given metrics.
+     */
+    public void setPhaseMetrics(PhaseMetrics phaseMetrics) {
+        this.phaseMetrics = phaseMetrics;
+    }
+
+    public int getNumPagesRendered() {
+        return numPagesRendered.get();
+    }
+
+    public int getNumPagesUnchanged() {
+        return numPagesUnchanged.get();
+    }
+
+    private void countWritten(File file) {
+        numFilesWritten.incrementAndGet();
+        numBytesWritten.addAndGet(file.length());
+    }
+
+    /**
+     * Returns the number of files written so far, counting a file each time it is written.
+     * Coverage pages are not counted, since they may be rendered in the background.
+     */
+    public int getNumFilesWritten() {
+        return numFilesWritten.get();
+    }
+
+    /**
+     * Returns the number of bytes of the index page, style sheet and compressed debug logs written so far.
+     * Uncompressed debug logs and coverage pages are not counted.
+     */
+    public long getNumBytesWritten() {
+        return numBytesWritten.get();
     }
 
     @Override
@@ -434,10 +1042,10 @@ public class TestResult {
         sb.append("Number of Successfull Tests: " + numTestsSuccess + "\n");
         sb.append("Number of failure Tests: " + numTestsFailures + "\n");
         
-        if (coverageWarning == null) {
+        if (getCoverageWarning() == null) {
             sb.append("Total Code Coverage: " + getTotalPctCoverage() + "%\n");
         } else {
-            sb.append("Total Code Coverage: " + getTotalPctCoverage() + "% - " + coverageWarning + "\n");
+            sb.append("Total Code Coverage: " + getTotalPctCoverage() + "% - " + getCoverageWarning() + "\n");
         }
         
         sb.append("\n------------------------------\n");
@@ -463,5 +1071,85 @@ public class TestResult {
         
         return sb.toString();
     }
-    
+
+    /**
+     * A coverage result page of a class or a trigger.
+     */
+    private class CoveragePage implements Callable<Void> {
+        private String programName;
+        private ClassCoverageResult coverageResult;
+        private File src;
+        private File result;
+        private ReportManifest manifest;
+        private String path;
+
+        CoveragePage(String programName, ClassCoverageResult coverageResult, File src, File result) {
+            this.programName = programName;
+            this.coverageResult = coverageResult;
+            this.src = src;
+            this.result = result;
+        }
+
+        /**
+         * Returns the path of the page relative to the report, e.g. "classes/Foo.html".
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Makes the page rendered only when the hash of its inputs differs from the one in the manifest.
+         */
+        public void setManifest(ReportManifest manifest, String path) {
+            this.manifest = manifest;
+            this.path = path;
+        }
+
+        public Void call() throws IOException {
+            if (src == null || !src.exists()) {
+                if (manifest != null) {
+                    manifest.invalidate(path);
+                }
+                throw new IOException("Source file is not found: " + programName);
+            }
+
+            if (manifest != null) {
+                MessageDigest md = ReportManifest.newDigest();
+                ReportManifest.update(md, src);
+                coverageResult.updateDigest(md);
+                if (manifest.isUpToDate(path, ReportManifest.toHex(md.digest()))) {
+                    numPagesUnchanged.incrementAndGet();
+                    return null;
+                }
+            }
+
+            try {
+                coverageResult.toHtml(src, result);
+            } catch (IOException e) {
+                if (manifest != null) {
+                    manifest.invalidate(path);
+                }
+                throw e;
+            }
+            numPagesRendered.incrementAndGet();
+            numPageBytesWritten.addAndGet(result.length());
+            return null;
+        }
+    }
+
+    /**
+     * A line listed in the hot lines of the index page, with the class or trigger it belongs to
+     * and the directory of its coverage page.
+     */
+    private static class HotLine {
+        private ClassCoverageResult coverage;
+        private String dir;
+        private ClassCoverageResult.CodeLocationStatus location;
+
+        HotLine(ClassCoverageResult coverage, String dir, ClassCoverageResult.CodeLocationStatus location) {
+            this.coverage = coverage;
+            this.dir = dir;
+            this.location = location;
+        }
+    }
 }
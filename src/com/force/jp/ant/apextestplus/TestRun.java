@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import com.sforce.soap.apex.RunTestsResult;
+
+/**
+ * The result of a runTests call together with the debug log generated by it.
+ */
+public class TestRun {
+    /** The line Salesforce puts at the end of a debug log cut off at the maximum size. */
+    public static final String TRUNCATION_MARKER = "MAXIMUM DEBUG LOG SIZE REACHED";
+
+    private String[] classes;
+    private RunTestsResult result;
+    private String debugLog;
+    private boolean debugLogTruncated = false;
+
+    public TestRun(String[] classes, RunTestsResult result, String debugLog) {
+        this.classes = classes;
+        this.result = result;
+        this.debugLog = debugLog;
+    }
+
+    /**
+     * Returns the test classes requested to run. It is empty when all tests were run.
+     */
+    public String[] getClasses() {
+        return classes;
+    }
+
+    public RunTestsResult getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the debug log, or null if the server didn't return it.
+     */
+    public String getDebugLog() {
+        return debugLog;
+    }
+
+    /**
+     * Returns true if the debug log was cut off because it reached the maximum size.
+     */
+    public boolean isDebugLogTruncated() {
+        return debugLogTruncated || (debugLog != null && debugLog.lastIndexOf(TRUNCATION_MARKER) >= 0);
+    }
+
+    /**
+     * Drops the debug log, and the result too unless keepResult is true, once they have been added to a TestResult
+     * so that they can be garbage collected during the rest of the task. Whether the debug log was truncated is kept.
+     */
+    public void release(boolean keepResult) {
+        debugLogTruncated = isDebugLogTruncated();
+        debugLog = null;
+        if (!keepResult) {
+            result = null;
+        }
+    }
+}
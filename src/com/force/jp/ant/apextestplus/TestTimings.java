@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Durations of test methods measured by past runs, saved as a properties file
+ * whose keys are "class.method" and values are durations in milliseconds.
+ */
+public class TestTimings {
+    public static final String FILENAME = "test-timings.properties";
+
+    private Properties timings = new Properties();
+
+    /**
+     * Loads the timings saved in the directory. Returns empty timings if nothing has been saved yet.
+     */
+    public static TestTimings load(File dir) throws IOException {
+        TestTimings result = new TestTimings();
+        File file = new File(dir, FILENAME);
+        if (!file.exists()) {
+            return result;
+        }
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            result.timings.load(in);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return result;
+    }
+
+    public void save(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + dir.getAbsolutePath());
+        }
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(new File(dir, FILENAME)));
+            timings.store(out, "Durations of Apex test methods in milliseconds");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Records the durations of the test methods in the result.
+     * Timings of methods that were not run this time are kept as they are.
+     */
+    public void update(TestResult testResult) {
+        for (TestClassResult tcr : testResult.getTestClassResults()) {
+            for (Map.Entry<String, Double> methodTime : tcr.getMethodTimes().entrySet()) {
+                timings.setProperty(tcr.getClassName() + "." + methodTime.getKey(), String.valueOf(methodTime.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Drops the timings of the test classes that are not among the given ones, e.g. because they were deleted.
+     * Nothing is dropped when no class is given, since there's nothing to tell which classes exist then.
+     */
+    public void retainClasses(Set<String> classNames) {
+        if (classNames.isEmpty()) {
+            return;
+        }
+        for (String key : timings.stringPropertyNames()) {
+            int sep = key.lastIndexOf('.');
+            if (sep > 0 && !classNames.contains(key.substring(0, sep))) {
+                timings.remove(key);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return timings.isEmpty();
+    }
+
+    /**
+     * Returns the expected duration of each test class, that is the sum of the durations of its methods.
+     */
+    public Map<String, Double> getClassDurations() {
+        Map<String, Double> durations = new HashMap<String, Double>();
+        for (String key : timings.stringPropertyNames()) {
+            int sep = key.lastIndexOf('.');
+            if (sep <= 0) {
+                continue;
+            }
+
+            double time;
+            try {
+                time = Double.parseDouble(timings.getProperty(key));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            String className = key.substring(0, sep);
+            Double total = durations.get(className);
+            durations.put(className, total == null ? time : total + time);
+        }
+        return durations;
+    }
+}
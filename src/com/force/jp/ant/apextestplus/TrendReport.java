@@ -0,0 +1,375 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc. All rights reserved.
+ */
+package com.force.jp.ant.apextestplus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Writes trends of the runs in a RunHistory: total coverage and run time of each run,
+ * the slowest test methods with their percentiles, test methods that became slow in the latest run,
+ * and classes whose coverage changed in the latest run.
+ */
+public class TrendReport {
+    public static final String REPORT_FILENAME = "trends.html";
+
+    /** The number of the slowest test methods listed. */
+    private static final int MAX_SLOWEST = 30;
+
+    /** The number of previous samples required to tell if a test method became slow. */
+    private static final int MIN_SAMPLES = 3;
+
+    /** A test method is newly slow if its latest duration exceeds both this ratio and margin over its median. */
+    private static final double SLOW_RATIO = 2.0;
+    private static final double SLOW_MARGIN = 500;
+
+    private RunHistory history;
+    private int coverageTarget;
+
+    /** durations of each test method indexed by run, NaN where the method was not run */
+    private Map<String, float[]> durations = new TreeMap<String, float[]>();
+
+    public TrendReport(RunHistory history, int coverageTarget) {
+        this.history = history;
+        this.coverageTarget = coverageTarget;
+
+        List<RunHistory.Run> runs = history.getRuns();
+        for (int r = 0; r < runs.size(); r++) {
+            RunHistory.Run run = runs.get(r);
+            for (int i = 0; i < run.getNumMethods(); i++) {
+                String name = history.getName(run.getMethodId(i));
+                float[] values = durations.get(name);
+                if (values == null) {
+                    values = new float[runs.size()];
+                    Arrays.fill(values, Float.NaN);
+                    durations.put(name, values);
+                }
+                values[r] = run.getDuration(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the test methods run in the latest run that took much longer than they used to, the slowest first.
+     */
+    public List<MethodTrend> getNewlySlowMethods() {
+        List<MethodTrend> slow = new ArrayList<MethodTrend>();
+        for (MethodTrend trend : getMethodTrends()) {
+            if (trend.isNewlySlow()) {
+                slow.add(trend);
+            }
+        }
+        return slow;
+    }
+
+    /**
+     * Returns the trends of all test methods, the slowest in the latest run first.
+     */
+    public List<MethodTrend> getMethodTrends() {
+        List<MethodTrend> trends = new ArrayList<MethodTrend>();
+        for (Map.Entry<String, float[]> entry : durations.entrySet()) {
+            trends.add(new MethodTrend(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(trends, new Comparator<MethodTrend>() {
+            public int compare(MethodTrend o1, MethodTrend o2) {
+                return Double.compare(o2.getSortKey(), o1.getSortKey());
+            }
+        });
+        return trends;
+    }
+
+    public void writeReport(File outDir) throws IOException {
+        List<RunHistory.Run> runs = history.getRuns();
+        List<MethodTrend> trends = getMethodTrends();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        if (!outDir.exists() && !outDir.mkdirs()) {
+            throw new IOException("Failed to create diretory: " + outDir.getAbsolutePath());
+        }
+
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, REPORT_FILENAME)), "UTF-8"), 64 * 1024);
+            out.write("<html>\n");
+            out.write("<head>\n");
+            out.write("<title>Trends</title>\n");
+            out.write("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+            out.write("<link href=\"coverage.css\" rel=\"stylesheet\" type=\"text/css\" />\n");
+            out.write("</head>\n");
+            out.write("<body>\n");
+            out.write("<h1>Trends</h1>\n");
+            out.write("<p><a href=\"index.html\">Test Results</a> | The last " + runs.size() + " runs, the oldest first.</p>\n");
+
+            out.write("<h2>Coverage</h2>\n");
+            writeCoverageChart(out, runs);
+
+            out.write("<h2>Runs</h2>\n");
+            writeTableHeader(out, "Start Time", "Test Methods", "Failures", "Total Time", "Coverage");
+            for (RunHistory.Run run : runs) {
+                double pct = run.getTotalPctCoverage();
+                out.write("    <tr class=\"dataRow" + (run.getNumFailures() > 0 ? " failure" : " success") + "\">\n");
+                writeCell(out, format.format(new Date(run.getStartTime())));
+                writeCell(out, String.valueOf(run.getNumMethods()));
+                writeCell(out, String.valueOf(run.getNumFailures()));
+                writeCell(out, (run.getTotalTime() / 1000) + " sec");
+                writeCell(out, pct >= 0 ? String.format("%.1f", pct) + "%" : "");
+                out.write("    </tr>\n");
+            }
+            writeTableFooter(out);
+
+            out.write("<h2>Newly Slow Tests</h2>\n");
+            out.write("<p>Test methods whose latest time is more than " + String.format("%.1f", SLOW_RATIO) + " times and "
+                    + String.format("%.0f", SLOW_MARGIN) + " ms over their median of at least " + MIN_SAMPLES + " previous runs.</p>\n");
+            writeMethodTrends(out, getNewlySlowMethods());
+
+            out.write("<h2>Slowest Tests</h2>\n");
+            writeMethodTrends(out, trends.subList(0, Math.min(MAX_SLOWEST, trends.size())));
+
+            out.write("<h2>Coverage Changes</h2>\n");
+            out.write("<p>Classes and triggers whose coverage changed since the previous run.</p>\n");
+            writeCoverageChanges(out, runs);
+
+            out.write("</body>\n");
+            out.write("</html>\n");
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private void writeCoverageChart(Writer out, List<RunHistory.Run> runs) throws IOException {
+        int width = 600;
+        int height = 150;
+        StringBuilder points = new StringBuilder();
+        for (int r = 0; r < runs.size(); r++) {
+            double pct = runs.get(r).getTotalPctCoverage();
+            if (pct < 0) {
+                continue;
+            }
+            double x = runs.size() > 1 ? (double) r * width / (runs.size() - 1) : width / 2;
+            double y = height - pct * height / 100;
+            points.append(String.format("%.1f,%.1f ", x, y));
+        }
+
+        out.write("<svg width=\"" + (width + 40) + "\" height=\"" + (height + 20) + "\" xmlns=\"http://www.w3.org/2000/svg\">\n");
+        out.write("<g transform=\"translate(30,10)\" font-size=\"10\">\n");
+        out.write("<rect width=\"" + width + "\" height=\"" + height + "\" fill=\"none\" stroke=\"#ccc\" />\n");
+        for (int pct = 0; pct <= 100; pct += 25) {
+            int y = height - pct * height / 100;
+            out.write("<line x1=\"0\" y1=\"" + y + "\" x2=\"" + width + "\" y2=\"" + y + "\" stroke=\"#eee\" />\n");
+            out.write("<text x=\"-4\" y=\"" + (y + 3) + "\" text-anchor=\"end\">" + pct + "%</text>\n");
+        }
+        int target = height - coverageTarget * height / 100;
+        out.write("<line x1=\"0\" y1=\"" + target + "\" x2=\"" + width + "\" y2=\"" + target + "\" stroke=\"#c00\" stroke-dasharray=\"4\" />\n");
+        out.write("<polyline points=\"" + points.toString().trim() + "\" fill=\"none\" stroke=\"#1797c0\" stroke-width=\"2\" />\n");
+        out.write("</g>\n");
+        out.write("</svg>\n");
+    }
+
+    private void writeMethodTrends(Writer out, List<MethodTrend> trends) throws IOException {
+        writeTableHeader(out, "Test Method", "Latest", "Median", "90th Percentile", "Max", "Runs", "History");
+        for (MethodTrend trend : trends) {
+            out.write("    <tr class=\"dataRow" + (trend.isNewlySlow() ? " failure" : "") + "\">\n");
+            writeCell(out, StringEscapeUtils.escapeHtml(trend.getName()));
+            writeCell(out, Float.isNaN(trend.getLatest()) ? "" : formatTime(trend.getLatest()));
+            writeCell(out, formatTime(trend.getPercentile(50)));
+            writeCell(out, formatTime(trend.getPercentile(90)));
+            writeCell(out, formatTime(trend.getPercentile(100)));
+            writeCell(out, String.valueOf(trend.getNumSamples()));
+            writeCell(out, sparkline(trend.getDurations()));
+            out.write("    </tr>\n");
+        }
+        writeTableFooter(out);
+    }
+
+    private void writeCoverageChanges(Writer out, List<RunHistory.Run> runs) throws IOException {
+        writeTableHeader(out, "Name", "Type", "Previous", "Latest", "Change");
+        if (runs.size() >= 2) {
+            Map<String, Double> previous = getCoverages(runs.get(runs.size() - 2));
+            Map<String, Double> latest = getCoverages(runs.get(runs.size() - 1));
+            for (Map.Entry<String, Double> entry : latest.entrySet()) {
+                Double prev = previous.get(entry.getKey());
+                if (prev != null && prev.equals(entry.getValue())) {
+                    continue;
+                }
+                String[] typeAndName = entry.getKey().split(":", 2);
+                double change = entry.getValue() - (prev != null ? prev : 0);
+                out.write("    <tr class=\"dataRow" + (change < 0 ? " failure" : " success") + "\">\n");
+                writeCell(out, StringEscapeUtils.escapeHtml(typeAndName[1]));
+                writeCell(out, typeAndName[0]);
+                writeCell(out, prev != null ? String.format("%.1f", prev) + "%" : "new");
+                writeCell(out, String.format("%.1f", entry.getValue()) + "%");
+                writeCell(out, String.format("%+.1f", change) + "%");
+                out.write("    </tr>\n");
+            }
+        }
+        writeTableFooter(out);
+    }
+
+    private Map<String, Double> getCoverages(RunHistory.Run run) {
+        Map<String, Double> coverages = new TreeMap<String, Double>();
+        for (int i = 0; i < run.getNumCoverages(); i++) {
+            int locations = run.getNumLocations(i);
+            if (locations == 0) {
+                continue;
+            }
+            String type = run.getCoverageType(i) == RunHistory.TRIGGER ? "Trigger" : "Class";
+            coverages.put(type + ":" + history.getName(run.getCoverageId(i)),
+                    100.0 * (locations - run.getNumLocationsNotCovered(i)) / locations);
+        }
+        return coverages;
+    }
+
+    private static String sparkline(float[] values) {
+        float max = 0;
+        for (float value : values) {
+            if (!Float.isNaN(value)) {
+                max = Math.max(max, value);
+            }
+        }
+
+        int width = 2 * values.length;
+        StringBuilder sb = new StringBuilder();
+        sb.append("<svg width=\"" + width + "\" height=\"16\" xmlns=\"http://www.w3.org/2000/svg\">");
+        for (int i = 0; i < values.length; i++) {
+            if (Float.isNaN(values[i]) || max == 0) {
+                continue;
+            }
+            int h = Math.max(1, Math.round(values[i] * 16 / max));
+            sb.append("<rect x=\"" + (2 * i) + "\" y=\"" + (16 - h) + "\" width=\"1.5\" height=\"" + h + "\" fill=\"#1797c0\" />");
+        }
+        sb.append("</svg>");
+        return sb.toString();
+    }
+
+    private static String formatTime(double millis) {
+        return String.format("%.3f", millis / 1000) + " sec";
+    }
+
+    private static void writeTableHeader(Writer out, String... columns) throws IOException {
+        out.write("<table class=\"detailList\" border=\"0\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        out.write("<thead class=\"rich-table-thead\">\n");
+        out.write("    <tr class=\"headerRow\">\n");
+        for (String column : columns) {
+            out.write("        <th class=\"headerRow\" scope=\"col\" colspan=\"1\">" + column + "</th>\n");
+        }
+        out.write("    </tr>\n");
+        out.write("</thead>\n");
+        out.write("<tbody>\n");
+    }
+
+    private static void writeTableFooter(Writer out) throws IOException {
+        out.write("</tbody>\n");
+        out.write("</table>\n");
+    }
+
+    private static void writeCell(Writer out, String value) throws IOException {
+        out.write("        <td class=\"dataCell\" colspan=\"1\">" + value + "</td>\n");
+    }
+
+    /**
+     * The durations of a test method over the runs of the history.
+     */
+    public static class MethodTrend {
+        private String name;
+        private float[] durations;
+        private float[] sorted;
+
+        MethodTrend(String name, float[] durations) {
+            this.name = name;
+            this.durations = durations;
+
+            int n = 0;
+            float[] samples = new float[durations.length];
+            for (float duration : durations) {
+                if (!Float.isNaN(duration)) {
+                    samples[n++] = duration;
+                }
+            }
+            sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the duration of each run in milliseconds, NaN where the method was not run.
+         */
+        public float[] getDurations() {
+            return durations;
+        }
+
+        /**
+         * Returns the duration of the latest run in milliseconds, NaN if the method was not run in it.
+         */
+        public float getLatest() {
+            return durations[durations.length - 1];
+        }
+
+        public int getNumSamples() {
+            return sorted.length;
+        }
+
+        /**
+         * Returns the duration at the given percentile, by the nearest rank method.
+         */
+        public float getPercentile(int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(rank - 1, 0)];
+        }
+
+        /**
+         * Returns the median duration of the runs before the latest one, NaN if there are fewer than
+         * MIN_SAMPLES of them.
+         */
+        public float getPreviousMedian() {
+            float[] previous = new float[durations.length];
+            int n = 0;
+            for (int i = 0; i < durations.length - 1; i++) {
+                if (!Float.isNaN(durations[i])) {
+                    previous[n++] = durations[i];
+                }
+            }
+            if (n < MIN_SAMPLES) {
+                return Float.NaN;
+            }
+
+            Arrays.sort(previous, 0, n);
+            return n % 2 == 1 ? previous[n / 2] : (previous[n / 2 - 1] + previous[n / 2]) / 2;
+        }
+
+        public boolean isNewlySlow() {
+            float latest = getLatest();
+            float median = getPreviousMedian();
+            if (Float.isNaN(latest) || Float.isNaN(median)) {
+                return false;
+            }
+            return latest > median * SLOW_RATIO && latest > median + SLOW_MARGIN;
+        }
+
+        private double getSortKey() {
+            return Float.isNaN(getLatest()) ? -1 : getLatest();
+        }
+    }
+}